@@ -0,0 +1,252 @@
+/**
+ * An on-disk cache of API responses, used by Client to send conditional
+ * requests. For every url the last complete response body is kept together
+ * with its ETag and Last-Modified validators. When the next request for the
+ * url is answered with 304 Not Modified, the body is read from disk instead
+ * of being downloaded again.
+ *
+ * A response is recorded while the caller reads it and only replaces the
+ * cached copy once it has been read to the end, so an interrupted download
+ * never leaves a partial body behind. Responses without validators are not
+ * cached.
+ *
+ * Set -Dapi.cache=false to disable it and -Dapi.cacheDir to change where
+ * the files are kept (default .api-cache).
+ *
+ * Filename: ApiCache.java
+ * @author: David Wang
+ *
+ */
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+public class ApiCache {
+
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("api.cache", "true"));
+    private static final Path _DIR = Paths.get(System.getProperty("api.cacheDir", ".api-cache"));
+
+    // Names of the validators in a cache entry's properties file, the same
+    // as the response headers they come from.
+    public static final String ETAG = "ETag";
+    public static final String LAST_MODIFIED = "Last-Modified";
+
+    /**
+     * Returns the validators of the cached response for the url.
+     *
+     * @param url The requested url.
+     * @return Properties ETAG and/or LAST_MODIFIED, or null if nothing is
+     * cached for the url.
+     */
+    public static Properties getValidators(String url) {
+        if (!ENABLED || !Files.exists(_bodyFile(url))) {
+            return null;
+        }
+        Properties validators = new Properties();
+        try (InputStream in = Files.newInputStream(_metaFile(url))) {
+            validators.load(in);
+        } catch (IOException e) {
+            return null;
+        }
+        return validators;
+    }
+
+    /**
+     * Returns a string identifying the cached response for the url: its ETag,
+     * or its Last-Modified date if it has no ETag.
+     *
+     * @param url The requested url.
+     * @return String The version, or null if nothing is cached for the url.
+     */
+    public static String getVersion(String url) {
+        Properties validators = getValidators(url);
+        if (validators == null) {
+            return null;
+        }
+        return validators.getProperty(ETAG, validators.getProperty(LAST_MODIFIED));
+    }
+
+    /**
+     * Opens the cached response body for the url.
+     *
+     * @param url The requested url.
+     * @exception IOException An exception is thrown if nothing is cached for
+     * the url.
+     * @return InputStream The body.
+     */
+    public static InputStream openBody(String url) throws IOException {
+        return Files.newInputStream(_bodyFile(url));
+    }
+
+    /**
+     * Wraps a response body so that it is saved as the cached copy for the
+     * url once it has been read to the end. Returns the body itself if the
+     * cache is disabled or the response has no validators.
+     *
+     * @param url The requested url.
+     * @param etag The ETag header of the response, or null.
+     * @param lastModified The Last-Modified header of the response, or null.
+     * @param body The response body.
+     * @return InputStream The stream to read the body from.
+     */
+    public static InputStream record(String url, String etag, String lastModified, InputStream body) {
+        if (!ENABLED || (etag == null && lastModified == null)) {
+            return body;
+        }
+        Properties validators = new Properties();
+        if (etag != null) {
+            validators.setProperty(ETAG, etag);
+        }
+        if (lastModified != null) {
+            validators.setProperty(LAST_MODIFIED, lastModified);
+        }
+        try {
+            Files.createDirectories(_DIR);
+            return new RecordingInputStream(url, validators, body);
+        } catch (IOException e) {
+            System.out.println("Not caching " + url + ": " + e);
+            return body;
+        }
+    }
+
+    private static Path _bodyFile(String url) {
+        return _DIR.resolve(DigestUtils.md5Hex(url) + ".body");
+    }
+
+    private static Path _metaFile(String url) {
+        return _DIR.resolve(DigestUtils.md5Hex(url) + ".properties");
+    }
+
+    /**
+     * Copies everything read into a temporary file, which becomes the cached
+     * body on end of stream. Failing to write the copy only disables caching
+     * of this response; the caller keeps reading the body either way.
+     */
+    private static class RecordingInputStream extends FilterInputStream {
+
+        private final String _url;
+        private final Properties _validators;
+        private final Path _tmp;
+        private OutputStream _copy;
+
+        RecordingInputStream(String url, Properties validators, InputStream body) throws IOException {
+            super(body);
+            _url = url;
+            _validators = validators;
+            _tmp = Paths.get(_bodyFile(url) + ".tmp");
+            _copy = Files.newOutputStream(_tmp);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b < 0) {
+                _commit();
+            } else if (_copy != null) {
+                try {
+                    _copy.write(b);
+                } catch (IOException e) {
+                    _discard(e);
+                }
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n < 0) {
+                _commit();
+            } else if (_copy != null) {
+                try {
+                    _copy.write(b, off, n);
+                } catch (IOException e) {
+                    _discard(e);
+                }
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Skipped bytes still have to reach the copy.
+            if (n <= 0) {
+                return 0;
+            }
+            byte[] buffer = new byte[(int) Math.min(n, 8192)];
+            long skipped = 0;
+            while (skipped < n) {
+                int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+                if (read < 0) {
+                    break;
+                }
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (_copy != null) {
+                    _discard(null);
+                }
+            }
+        }
+
+        /**
+         * Replaces the cached body and then its validators. The old
+         * validators are removed first so they never describe the new body.
+         */
+        private void _commit() {
+            if (_copy == null) {
+                return;
+            }
+            try {
+                _copy.close();
+                _copy = null;
+                Files.deleteIfExists(_metaFile(_url));
+                Files.move(_tmp, _bodyFile(_url), ATOMIC_MOVE, REPLACE_EXISTING);
+
+                Path meta = Paths.get(_metaFile(_url) + ".tmp");
+                try (OutputStream out = Files.newOutputStream(meta)) {
+                    _validators.store(out, _url);
+                }
+                Files.move(meta, _metaFile(_url), ATOMIC_MOVE, REPLACE_EXISTING);
+            } catch (IOException e) {
+                _discard(e);
+            }
+        }
+
+        /**
+         * Drops the partial copy, reporting the cause if there is one.
+         */
+        private void _discard(IOException cause) {
+            if (cause != null) {
+                System.out.println("Not caching " + _url + ": " + cause);
+            }
+            try {
+                if (_copy != null) {
+                    _copy.close();
+                }
+                Files.deleteIfExists(_tmp);
+            } catch (IOException e) {
+                // Nothing else to clean up.
+            }
+            _copy = null;
+        }
+    }
+}
@@ -0,0 +1,319 @@
+/**
+ * A fast CSV file writer for large exports.
+ *
+ * - Rows are collected into chunks which are encoded to bytes on a pool of
+ *   threads. Encoded chunks are written strictly in the order they were
+ *   started, so row order is preserved.
+ * - Output goes through a FileChannel with a large buffer, optionally
+ *   through a streaming gzip encoder.
+ * - The file is written under a unique temporary name next to the target and
+ *   renamed over it on close(), so readers never see a partial file and
+ *   old content is always replaced. abort() discards the temporary file.
+ *
+ * Values are encoded by type rather than through toString() where
+ * possible. Fields are quoted only when they contain a comma, quote, line
+ * break or leading/trailing space, and records end with CRLF, like
+ * CSVFormat.DEFAULT.
+ *
+ * Filename: CSVExportWriter.java
+ * @author: David Wang
+ *
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.GZIPOutputStream;
+
+public class CSVExportWriter implements Closeable {
+
+    // Defaults, overridable with the matching -Dexport.* system property.
+    public static final boolean GZIP = Boolean.getBoolean("export.gzip");
+    public static final int THREADS = Integer.getInteger("export.threads",
+            Runtime.getRuntime().availableProcessors());
+    public static final int CHUNK_ROWS = Integer.getInteger("export.chunkRows", 10000);
+
+    private static final int _BUFFER_SIZE = 1 << 20;
+
+    private final Path _target;
+    private final Path _temp;
+    private final FileChannel _channel;
+    private final OutputStream _out;
+    private final ExecutorService _encoders;
+    private final int _maxPending;
+    private final int _chunkRows;
+
+    // Chunks being encoded, oldest first.
+    private final Deque<Future<byte[]>> _pending = new ArrayDeque<Future<byte[]>>();
+    private List<Object[]> _chunk;
+    private long _rows = 0;
+    private boolean _closed = false;
+    private boolean _committed = false;
+
+    /**
+     * Opens the export with the default gzip, thread and chunk settings.
+     *
+     * @param filename The file to create or replace. ".gz" is appended when
+     * gzip output is enabled and the name does not already end with it.
+     * @param header The column names.
+     * @exception IOException An exception is thrown if the temporary file
+     * cannot be created.
+     */
+    public CSVExportWriter(String filename, String... header) throws IOException {
+        this(filename, GZIP, THREADS, CHUNK_ROWS, header);
+    }
+
+    /**
+     * @param filename The file to create or replace.
+     * @param gzip Whether to gzip the output.
+     * @param threads The number of threads encoding chunks; 1 encodes on
+     * the calling thread.
+     * @param chunkRows The number of rows encoded per task.
+     * @param header The column names.
+     * @exception IOException An exception is thrown if the temporary file
+     * cannot be created.
+     */
+    public CSVExportWriter(String filename, boolean gzip, int threads, int chunkRows,
+                           String... header) throws IOException {
+        if (gzip && !filename.endsWith(".gz")) {
+            filename += ".gz";
+        }
+        _target = Paths.get(filename).toAbsolutePath();
+        _temp = createTempSibling(_target);
+        _channel = FileChannel.open(_temp, StandardOpenOption.WRITE);
+
+        OutputStream out = new BufferedOutputStream(Channels.newOutputStream(_channel), _BUFFER_SIZE);
+        _out = gzip ? new GZIPOutputStream(out, _BUFFER_SIZE) : out;
+        _encoders = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        _maxPending = Math.max(1, threads) * 2;
+        _chunkRows = chunkRows;
+        _chunk = new ArrayList<Object[]>(chunkRows);
+
+        List<Object[]> headerChunk = new ArrayList<Object[]>(1);
+        headerChunk.add(header);
+        _out.write(_encode(headerChunk));
+    }
+
+    /**
+     * Creates an empty file with a unique name next to the target, so that
+     * concurrent exports of the same file do not write to the same
+     * temporary file. Unlike Files.createTempFile, the file gets the
+     * default permissions, which the renamed file keeps.
+     *
+     * @param target The file that the temporary file will replace.
+     * @exception IOException An exception is thrown if the file cannot be
+     * created.
+     * @return Path The temporary file.
+     */
+    public static Path createTempSibling(Path target) throws IOException {
+        while (true) {
+            Path temp = target.resolveSibling(target.getFileName() + "."
+                    + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+            try {
+                return Files.createFile(temp);
+            } catch (FileAlreadyExistsException e) {
+                // Taken by another export, try another name.
+            }
+        }
+    }
+
+    /**
+     * Adds one record. The values are copied by reference, so the caller must
+     * not modify the array afterwards.
+     *
+     * @param values The field values; nulls are written as empty fields.
+     * @exception IOException An exception is thrown if an earlier chunk
+     * could not be encoded or written.
+     * @return None
+     */
+    public void writeRow(Object... values) throws IOException {
+        _chunk.add(values);
+        _rows++;
+        if (_chunk.size() >= _chunkRows) {
+            _submitChunk();
+        }
+    }
+
+    /**
+     * Writes the remaining rows and moves the file into place, replacing
+     * any existing file.
+     *
+     * @exception IOException An exception is thrown if the file cannot be
+     * written or renamed.
+     * @return None
+     */
+    public void close() throws IOException {
+        if (_closed) {
+            return;
+        }
+        try {
+            _submitChunk();
+            while (!_pending.isEmpty()) {
+                _writeOldest();
+            }
+            _out.close();
+            _closed = true;
+            try {
+                Files.move(_temp, _target, StandardCopyOption.REPLACE_EXISTING,
+                           StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(_temp, _target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            _committed = true;
+        } catch (IOException e) {
+            abort();
+            throw e;
+        } finally {
+            if (_encoders != null) {
+                _encoders.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Discards everything written so far; the target file is left as it
+     * was. Does nothing once close() has succeeded.
+     *
+     * @return None
+     */
+    public void abort() {
+        if (_committed) {
+            return;
+        }
+        _closed = true;
+        if (_encoders != null) {
+            _encoders.shutdownNow();
+        }
+        try {
+            _channel.close();
+            Files.deleteIfExists(_temp);
+        } catch (IOException e) {
+            System.out.println("Could not delete " + _temp + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return long The number of records written, excluding the header.
+     */
+    public long getRowCount() {
+        return _rows;
+    }
+
+    /**
+     * @return String The path of the file being written.
+     */
+    public String getFilename() {
+        return _target.toString();
+    }
+
+    /**
+     * Hands the current chunk to an encoder, first writing out finished
+     * chunks if too many are pending.
+     */
+    private void _submitChunk() throws IOException {
+        if (_chunk.isEmpty()) {
+            return;
+        }
+        final List<Object[]> chunk = _chunk;
+        _chunk = new ArrayList<Object[]>(_chunkRows);
+
+        if (_encoders == null) {
+            _out.write(_encode(chunk));
+            return;
+        }
+        while (_pending.size() >= _maxPending) {
+            _writeOldest();
+        }
+        _pending.add(_encoders.submit(new Callable<byte[]>() {
+            public byte[] call() {
+                return _encode(chunk);
+            }
+        }));
+    }
+
+    private void _writeOldest() throws IOException {
+        try {
+            _out.write(_pending.removeFirst().get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while encoding", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Encoding failed", e.getCause());
+        }
+    }
+
+    /**
+     * Encodes the rows as UTF-8 CSV records.
+     */
+    private static byte[] _encode(List<Object[]> rows) {
+        StringBuilder sb = new StringBuilder(rows.size() * 64);
+        for (Object[] row : rows) {
+            for (int i = 0; i < row.length; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                _appendValue(sb, row[i]);
+            }
+            sb.append('\r').append('\n');
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void _appendValue(StringBuilder sb, Object value) {
+        if (value == null) {
+            return;
+        }
+        if (value instanceof Integer || value instanceof Long) {
+            sb.append(((Number) value).longValue());
+        } else if (value instanceof Double) {
+            sb.append(((Double) value).doubleValue());
+        } else {
+            _appendString(sb, value.toString());
+        }
+    }
+
+    private static void _appendString(StringBuilder sb, String value) {
+        int length = value.length();
+        boolean quote = length > 0
+                && (value.charAt(0) == ' ' || value.charAt(length - 1) == ' ');
+        for (int i = 0; i < length && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+        }
+        if (!quote) {
+            sb.append(value);
+            return;
+        }
+
+        sb.append('"');
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                sb.append('"');
+            }
+            sb.append(c);
+        }
+        sb.append('"');
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * A CampaignSink that writes every row to a CSV file with the columns
+ * id, cpm, name, startDate, totalClicks and totalViews, optionally followed
+ * by a revenue column.
+ *
+ * Revenue is calculated by the totals aggregation with the following
+ * formula, using the fixed-point cpmMicros field, and copied as is:
+ * revenue = cpm * totalViews / 1000
+ *
+ * The file is written by a CSVExportWriter, so it is replaced atomically
+ * once the export completes and can be gzipped with -Dexport.gzip=true.
+ *
+ * Filename: CSVSink.java
+ * @author: David Wang
+ *
+ */
+
+import com.mongodb.DBObject;
+
+import java.io.IOException;
+
+public class CSVSink implements CampaignSink {
+
+    private final boolean _includeRevenue;
+    private final CSVExportWriter _writer;
+
+    /**
+     * Opens the CSV file and writes the header.
+     *
+     * @param filename The name of the CSV file to print out the campaigns to.
+     * @param includeRevenue Whether to add the revenue column.
+     * @exception IOException An exception is thrown if a file is not able to be
+     * opened or written to.
+     */
+    public CSVSink(String filename, boolean includeRevenue) throws IOException {
+        _includeRevenue = includeRevenue;
+        _writer = includeRevenue
+            ? new CSVExportWriter(filename, "id", "cpm", "name", "startDate",
+                                  "totalClicks", "totalViews", "revenue")
+            : new CSVExportWriter(filename, "id", "cpm", "name", "startDate",
+                                  "totalClicks", "totalViews");
+        System.out.println("Writing campaigns to " + _writer.getFilename() + "...");
+    }
+
+    public void accept(DBObject obj) throws IOException {
+        Object id = obj.get("_id");
+        Object cpm = obj.get("cpm");
+        Object name = obj.get("name");
+        Object startDate = obj.get("startDate");
+        Object totalClicks = obj.get("totalClicks");
+        Object totalViews = obj.get("totalViews");
+
+        if (_includeRevenue) {
+            Object revenue = obj.get("revenue");
+            _writer.writeRow(id, cpm, name, startDate, totalClicks, totalViews, revenue);
+        } else {
+            _writer.writeRow(id, cpm, name, startDate, totalClicks, totalViews);
+        }
+    }
+
+    public void close() throws IOException {
+        _writer.close();
+        System.out.println("Finished writing " + _writer.getRowCount() + " campaigns to "
+                + _writer.getFilename());
+    }
+
+    public void abort() {
+        _writer.abort();
+        System.out.println("Discarded " + _writer.getFilename());
+    }
+}
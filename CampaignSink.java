@@ -0,0 +1,36 @@
+/**
+ * A destination for campaign totals rows. Client.outputCampaigns iterates a
+ * cursor once and hands every row to each sink, so any number of outputs
+ * can be produced from a single aggregation.
+ *
+ * Filename: CampaignSink.java
+ * @author: David Wang
+ *
+ */
+
+import com.mongodb.DBObject;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+public interface CampaignSink extends Closeable {
+
+    /**
+     * Writes one campaign row. The row contains the fields _id, cpm, name,
+     * startDate, totalClicks and totalViews.
+     *
+     * @param campaign The campaign row.
+     * @exception IOException An exception is thrown if the row cannot be
+     * written.
+     * @return None
+     */
+    void accept(DBObject campaign) throws IOException;
+
+    /**
+     * Called instead of close() when the export fails part way through.
+     * Sinks writing files should discard the incomplete output.
+     *
+     * @return None
+     */
+    void abort();
+}
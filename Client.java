@@ -7,6 +7,8 @@
  *
  * http://homework.ad-juster.com/api/campaigns GET
  * http://homework.ad-juster.com/api/creatives GET
+ *
+ * The base url can be changed with -Dapi.baseUrl.
  */
 
 import com.mongodb.Cursor;
@@ -15,21 +17,20 @@ import com.mongodb.DBObject;
 import java.lang.StringBuffer;
 import java.io.IOException;
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.File;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.nio.charset.Charset;
+import java.io.Reader;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
 
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVPrinter;
-import org.apache.http.client.HttpClient;
+import java.util.Properties;
+
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.Header;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.util.EntityUtils;
 
 import org.json.simple.JSONObject;
 import org.json.simple.JSONArray;
@@ -38,8 +39,16 @@ import org.json.simple.parser.JSONParser;
 
 public class Client {
 
-    private static final String _CAMPAIGNS_ENDPOINT = "http://homework.ad-juster.com/api/campaigns";
-    private static final String _CREATIVES_ENDPOINT = "http://homework.ad-juster.com/api/creatives";
+    // Override with -Dapi.baseUrl, e.g. to point at a LocalApiServer.
+    private static final String _BASE_URL = System.getProperty("api.baseUrl", "http://homework.ad-juster.com");
+    private static final String _CAMPAIGNS_ENDPOINT = _BASE_URL + "/api/campaigns";
+    private static final String _CREATIVES_ENDPOINT = _BASE_URL + "/api/creatives";
+
+    // The one HTTP client shared by every request, so connections to the
+    // API are pooled and kept alive between requests. Created on first use
+    // by _httpClient() and released by close(). HttpClientBuilder sends
+    // Accept-Encoding: gzip,deflate and decodes compressed responses.
+    private static CloseableHttpClient _httpClient;
 
     /**
      * Iterates over each Campaign from the cursor object and prints them out
@@ -55,52 +64,13 @@ public class Client {
      * opened or written to.
      */
 	public static void outputCampaignsToCSV(Cursor cursor, String filename) throws IOException {
-        // Try to create the file if it doesn't exist.
-        File file = new File(filename);
-        if (!file.exists()) {
-            file.createNewFile();
-        }
-
-        System.out.println("Writing campaigns to " + filename + "...");
-		BufferedWriter writer = Files.newBufferedWriter(Paths.get(filename), 
-                                                        Charset.forName("UTF-8"),
-                                                        StandardOpenOption.WRITE);
-
-		CSVPrinter csvPrinter = new CSVPrinter(writer, CSVFormat.DEFAULT
-				.withHeader("id", "cpm", "name", "startDate", 
-							"totalClicks", "totalViews"));
-
-
-        while (cursor.hasNext()) {
-            DBObject obj = cursor.next();
-
-            Object id = obj.get("_id");
-            Object cpm = obj.get("cpm");
-            Object name = obj.get("name");
-            Object startDate = obj.get("startDate");
-            Object totalClicks = obj.get("totalClicks");
-            Object totalViews = obj.get("totalViews");
-
-            csvPrinter.printRecord(id, cpm, name, startDate, totalClicks, totalViews);
-        }
-
-		csvPrinter.flush();            
-        System.out.println("Finished writing to " + filename);
+        outputCampaigns(cursor, new CSVSink(filename, false));
 	}
 
     /**
      * Iterates over each Campaign from the cursor object and prints them out
-     * in CSV format provided by the filename. The Campaign objects must contain
-     * the followign fields: _id, cpm, name, startDate, totalClicks, totalViews.
-     * totalClicks and totalViews are calculated on the fly from 
-     * Db.getTotalClicksAndViewsFromCampaigns()
-     *
-     * This function is similar to outputCampaigns except that a revenue column
-     * is added. Note: Revenue is calculated with the following formula:
-     * revenue = cpm * totalViews / 1000
-     * The cpm value is parsed from a string to a float (e.g. "$46.00" -> 46.00)
-     * The conversion skips the first character in the string, because it is
-     * assumed that there will always be a "$" at index 0.
+     * in CSV format provided by the filename, with an additional revenue
+     * column. See CSVSink for how revenue is calculated.
      *
      * @param cursor A cursor that points to the first campaign DBObject.
      * @param filename The name of the CSV file to print out the campaigns to.
@@ -109,43 +79,85 @@ public class Client {
      * opened or written to.
      */
 	public static void outputRevenuesCampaignsToCSV(Cursor cursor, String filename) throws IOException {
-        // Try to create the file if it doesn't exist.
-        File file = new File(filename);
-        if (!file.exists()) {
-            file.createNewFile();
-        }
-
-        System.out.println("Writing campaigns to " + filename + "...");
-		BufferedWriter writer = Files.newBufferedWriter(Paths.get(filename), 
-                                                        Charset.forName("UTF-8"),
-                                                        StandardOpenOption.WRITE);
-
-		CSVPrinter csvPrinter = new CSVPrinter(writer, CSVFormat.DEFAULT
-				.withHeader("id", "cpm", "name", "startDate", 
-							"totalClicks", "totalViews", "revenue"));
-
-
-        while (cursor.hasNext()) {
-            DBObject obj = cursor.next();
+        outputCampaigns(cursor, new CSVSink(filename, true));
+	}
 
-            Object id = obj.get("_id");
-            Object cpm = obj.get("cpm");
-            Object name = obj.get("name");
-            Object startDate = obj.get("startDate");
-            Object totalClicks = obj.get("totalClicks");
-            Object totalViews = obj.get("totalViews");
+    /**
+     * Iterates over each rollup bucket from the cursor object, as returned
+     * by Db.getRollups(), and prints them out in CSV format provided by the
+     * filename.
+     *
+     * @param cursor A cursor that points to the first bucket DBObject.
+     * @param filename The name of the CSV file to print out the buckets to.
+     * @return None
+     * @exception IOException An exception is thrown if a file is not able to be
+     * opened or written to.
+     */
+    public static void outputRollupsToCSV(Cursor cursor, String filename) throws IOException {
+        outputCampaigns(cursor, new RollupCSVSink(filename));
+    }
 
-            // Remove the dollar sign in the cpm and convert to a float.
-            String cpmString = cpm.toString();
-            float cpmFloat = Float.parseFloat(cpmString.substring(1, cpmString.length()));
-            Object revenue = cpmFloat * (int) totalViews / 1000;
+    /**
+     * Writes the same Campaigns as outputRevenuesCampaignsToCSV to a binary
+     * columnar file that can be memory-mapped and scanned one column at a
+     * time with ColumnarReader.
+     *
+     * @param cursor A cursor that points to the first campaign DBObject.
+     * @param filename The name of the columnar file.
+     * @return None
+     * @exception IOException An exception is thrown if a file is not able to be
+     * written to.
+     */
+    public static void outputCampaignsToColumnar(Cursor cursor, String filename) throws IOException {
+        outputCampaigns(cursor, new ColumnarSink(filename));
+    }
 
-            csvPrinter.printRecord(id, cpm, name, startDate, totalClicks, totalViews, revenue);
+    /**
+     * Iterates over the cursor once and hands every Campaign to each of the
+     * sinks in turn, so several outputs share a single aggregation and a
+     * single transfer of its results. The cursor is always closed; the
+     * sinks are closed when every row was written and aborted otherwise.
+     *
+     * @param cursor A cursor that points to the first campaign DBObject.
+     * @param sinks The outputs to write every Campaign to.
+     * @return long The number of Campaigns written.
+     * @exception IOException An exception is thrown if any sink fails.
+     */
+    public static long outputCampaigns(Cursor cursor, CampaignSink... sinks) throws IOException {
+        long start = Metrics.start();
+        long count = 0;
+        try {
+            while (cursor.hasNext()) {
+                DBObject obj = cursor.next();
+                for (CampaignSink sink : sinks) {
+                    sink.accept(obj);
+                }
+                count++;
+            }
+        } catch (IOException | RuntimeException e) {
+            for (CampaignSink sink : sinks) {
+                sink.abort();
+            }
+            throw e;
+        } finally {
+            cursor.close();
         }
 
-		csvPrinter.flush();            
-        System.out.println("Finished writing to " + filename);
-	}
+        IOException failure = null;
+        for (CampaignSink sink : sinks) {
+            try {
+                sink.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        Metrics.stop("export", start);
+        Metrics.count("export.rows", count);
+        return count;
+    }
 
     /**
      *  Gets the Creative JSON objects from the endpoint specified at
@@ -167,6 +179,255 @@ public class Client {
         return _getJSONArrayFromUrl(_CAMPAIGNS_ENDPOINT);
     }
 
+    /**
+     *  Streams the Creative JSON objects from the endpoint specified at
+     *  _CREATIVES_ENDPOINT, passing each one to the handler as soon as it has
+     *  been parsed.
+     *
+     *  @param handler The handler that receives every Creative object.
+     *  @return long The number of Creative objects streamed.
+     */
+    public static long streamCreatives(JSONRecordHandler handler) throws Exception {
+        return _streamJSONArrayFromUrl(_CREATIVES_ENDPOINT, handler);
+    }
+
+    /**
+     *  Streams the Campaign JSON objects from the endpoint specified at
+     *  _CAMPAIGNS_ENDPOINT, passing each one to the handler as soon as it has
+     *  been parsed.
+     *
+     *  @param handler The handler that receives every Campaign object.
+     *  @return long The number of Campaign objects streamed.
+     */
+    public static long streamCampaigns(JSONRecordHandler handler) throws Exception {
+        return _streamJSONArrayFromUrl(_CAMPAIGNS_ENDPOINT, handler);
+    }
+
+    /**
+     *  Checks whether the endpoint specified at _CREATIVES_ENDPOINT has
+     *  changed since the response identified by loadedVersion. If that is
+     *  the cached response, a conditional request is sent and a 304 answer
+     *  means it has not.
+     *
+     *  @param loadedVersion A value returned by getCreativesVersion(), or null.
+     *  @return boolean false if the creatives are known to be unchanged.
+     */
+    public static boolean isCreativesModified(String loadedVersion) throws Exception {
+        return _isModified(_CREATIVES_ENDPOINT, loadedVersion);
+    }
+
+    /**
+     *  Checks whether the endpoint specified at _CAMPAIGNS_ENDPOINT has
+     *  changed since the response identified by loadedVersion. See
+     *  isCreativesModified().
+     *
+     *  @param loadedVersion A value returned by getCampaignsVersion(), or null.
+     *  @return boolean false if the campaigns are known to be unchanged.
+     */
+    public static boolean isCampaignsModified(String loadedVersion) throws Exception {
+        return _isModified(_CAMPAIGNS_ENDPOINT, loadedVersion);
+    }
+
+    /**
+     *  Returns the version (ETag or Last-Modified) of the last complete
+     *  response of the endpoint specified at _CREATIVES_ENDPOINT.
+     *
+     *  @return String The version, or null if it is not cached.
+     */
+    public static String getCreativesVersion() {
+        return ApiCache.getVersion(_CREATIVES_ENDPOINT);
+    }
+
+    /**
+     *  Returns the version (ETag or Last-Modified) of the last complete
+     *  response of the endpoint specified at _CAMPAIGNS_ENDPOINT.
+     *
+     *  @return String The version, or null if it is not cached.
+     */
+    public static String getCampaignsVersion() {
+        return ApiCache.getVersion(_CAMPAIGNS_ENDPOINT);
+    }
+
+    /**
+     *  Opens the raw HTTP response body of the endpoint specified at
+     *  _CREATIVES_ENDPOINT. The caller is responsible for closing it.
+     *
+     *  @return InputStream The undecoded JSON body.
+     */
+    public static InputStream openCreativesStream() throws Exception {
+        return _openStream(_CREATIVES_ENDPOINT);
+    }
+
+    /**
+     *  Opens the raw HTTP response body of the endpoint specified at
+     *  _CAMPAIGNS_ENDPOINT. The caller is responsible for closing it.
+     *
+     *  @return InputStream The undecoded JSON body.
+     */
+    public static InputStream openCampaignsStream() throws Exception {
+        return _openStream(_CAMPAIGNS_ENDPOINT);
+    }
+
+    /**
+     * Tokenizes a JSON array from the stream and passes each element to the
+     * handler. The body is never buffered and no JSONArray is built; each
+     * element can be garbage collected once the handler returns. The stream
+     * is closed when parsing ends.
+     *
+     * @param content A UTF-8 encoded JSON array.
+     * @param handler The handler that receives every element of the array.
+     * @return long The number of elements streamed.
+     * @exception Exception An exception is thrown if the stream cannot be
+     * read, the JSON is malformed or the handler fails.
+     */
+    public static long streamJSONArray(InputStream content, JSONRecordHandler handler) throws Exception {
+        System.out.println("Streaming json objects...");
+        long start = Metrics.start();
+        try (Reader rd = new BufferedReader(
+                new InputStreamReader(content, StandardCharsets.UTF_8))) {
+            long count = JSONArrayStreamer.stream(rd, handler);
+            System.out.println("Streamed " + count + " objects");
+            Metrics.count("json.records", count);
+            return count;
+        } finally {
+            Metrics.stop("json.stream", start);
+        }
+    }
+
+    /**
+     * Tokenizes the JSON array returned by the url directly from the HTTP
+     * response stream. Unlike _getJSONArrayFromUrl the body is never buffered.
+     *
+     * @param url The url endpoint to the JSON data.
+     * @param handler The handler that receives every element of the array.
+     * @return long The number of elements streamed.
+     * @exception Exception An exception is thrown if there is an error in the
+     * HTTP request, the JSON is malformed or the handler fails.
+     */
+    private static long _streamJSONArrayFromUrl(String url, JSONRecordHandler handler) throws Exception {
+        return streamJSONArray(_openStream(url), handler);
+    }
+
+    /**
+     * Sends a GET request to the url and returns the response body. If the
+     * server answers that the cached response is still current, the body is
+     * read from the ApiCache instead.
+     *
+     * @param url The url endpoint to the JSON data.
+     * @return InputStream The response body.
+     * @exception Exception An exception is thrown if there is an error in the
+     * HTTP request.
+     */
+    private static InputStream _openStream(String url) throws Exception {
+        InputStream body = _openIfModified(url);
+        if (body == null) {
+            System.out.println("Not modified, reading the cached copy of " + url);
+            body = ApiCache.openBody(url);
+        }
+        return body;
+    }
+
+    /**
+     * Sends a GET request to the url, conditional on the cached response's
+     * ETag and Last-Modified if there is one. A 200 response is recorded in
+     * the ApiCache as it is read.
+     *
+     * @param url The url endpoint to the JSON data.
+     * @return InputStream The response body, or null on 304 Not Modified.
+     * @exception Exception An exception is thrown if there is an error in the
+     * HTTP request, or an IOException if the status is anything but 200, or
+     * 304 in answer to a conditional request.
+     */
+    private static InputStream _openIfModified(String url) throws Exception {
+        System.out.println("Connecting to " + url);
+        long start = Metrics.start();
+        Properties validators = ApiCache.getValidators(url);
+        HttpResponse response = _httpClient().execute(_conditionalGet(url, validators));
+        Metrics.stop("http.connect", start);
+
+        int status = response.getStatusLine().getStatusCode();
+        if (status == HttpStatus.SC_NOT_MODIFIED && validators != null) {
+            Metrics.count("http.notModified", 1);
+            return null;
+        }
+        if (status != HttpStatus.SC_OK || response.getEntity() == null) {
+            // Release the connection; an error page is not data.
+            EntityUtils.consumeQuietly(response.getEntity());
+            throw new IOException("Unexpected HTTP status " + status + " from " + url);
+        }
+        InputStream content = Metrics.countBytes("http.bytes", response.getEntity().getContent());
+        return ApiCache.record(url, _header(response, "ETag"),
+                _header(response, "Last-Modified"), content);
+    }
+
+    /**
+     * Returns false only if loadedVersion is the cached response of the url
+     * and the server confirms it is current. A changed response is aborted
+     * instead of read, so it is neither downloaded nor cached here.
+     */
+    private static boolean _isModified(String url, String loadedVersion) throws Exception {
+        if (loadedVersion == null || !loadedVersion.equals(ApiCache.getVersion(url))) {
+            return true;
+        }
+        System.out.println("Checking " + url + " for changes");
+        HttpGet request = _conditionalGet(url, ApiCache.getValidators(url));
+        HttpResponse response = _httpClient().execute(request);
+        if (response.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+            Metrics.count("http.notModified", 1);
+            return false;
+        }
+        // Closing the body would read it to the end to reuse the connection.
+        request.abort();
+        return true;
+    }
+
+    /**
+     * Builds a GET request carrying If-None-Match and If-Modified-Since for
+     * the cached validators, if any.
+     */
+    private static HttpGet _conditionalGet(String url, Properties validators) {
+        HttpGet request = new HttpGet(url);
+        if (validators != null) {
+            if (validators.containsKey(ApiCache.ETAG)) {
+                request.setHeader("If-None-Match", validators.getProperty(ApiCache.ETAG));
+            }
+            if (validators.containsKey(ApiCache.LAST_MODIFIED)) {
+                request.setHeader("If-Modified-Since", validators.getProperty(ApiCache.LAST_MODIFIED));
+            }
+        }
+        return request;
+    }
+
+    private static String _header(HttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        return header == null ? null : header.getValue();
+    }
+
+    /**
+     * Returns the shared HTTP client, creating it on first use.
+     */
+    private static synchronized CloseableHttpClient _httpClient() {
+        if (_httpClient == null) {
+            _httpClient = HttpClientBuilder.create().build();
+        }
+        return _httpClient;
+    }
+
+    /**
+     * Closes the shared HTTP client and its pooled connections. The next
+     * request creates a new one.
+     *
+     * @exception IOException An exception is thrown if a connection cannot
+     * be closed.
+     * @return None
+     */
+    public static synchronized void close() throws IOException {
+        if (_httpClient != null) {
+            _httpClient.close();
+            _httpClient = null;
+        }
+    }
+
     /**
      * Gets data in the form of JSON by establishing a HTTP connection from
      * the passed in url. The JSON data must be in the form of an array.
@@ -177,13 +438,22 @@ public class Client {
      * HTTP request.
      */
     private static JSONArray _getJSONArrayFromUrl(String url) throws Exception {
-        System.out.println("Connecting to " + url);
-        HttpClient client = HttpClientBuilder.create().build();
-        HttpGet request = new HttpGet(url);
-        HttpResponse response = client.execute(request);
+        return _parseJSONArray(_openStream(url));
+    }
 
+    /**
+     * Buffers the whole stream into a string and parses it into a JSONArray.
+     * Package-private so the benchmarks can time it without HTTP.
+     *
+     * @param content The JSON array.
+     * @return JSON Array An array of JSON objects.
+     * @exception Exception An exception is thrown if the stream cannot be
+     * read or the JSON is malformed.
+     */
+    static JSONArray _parseJSONArray(InputStream content) throws Exception {
+        long start = Metrics.start();
         BufferedReader rd = new BufferedReader(
-                new InputStreamReader(response.getEntity().getContent()));
+                new InputStreamReader(content));
 
         // Convert the buffered data into a buffered string
         System.out.println("Converting buffered data into string...");
@@ -199,6 +469,8 @@ public class Client {
         Object obj = parser.parse(result.toString());
         JSONArray array = (JSONArray) obj;
         System.out.println("Parsing Complete");
+        Metrics.stop("json.parse", start);
+        Metrics.count("json.records", array.size());
         return array;
     }
 }
@@ -0,0 +1,166 @@
+/**
+ * Reads a columnar campaign totals file written by ColumnarSink. The file is
+ * memory-mapped and each column is exposed as a typed buffer over the
+ * mapping, so scanning one column never reads the others.
+ *
+ * Filename: ColumnarReader.java
+ * @author: David Wang
+ *
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+public class ColumnarReader {
+
+    private final MappedByteBuffer _file;
+    private final long _rows;
+    // Column name -> {type, offset, length}
+    private final Map<String, long[]> _columns = new LinkedHashMap<String, long[]>();
+
+    /**
+     * Maps the file and reads its footer.
+     *
+     * @param filename The columnar file.
+     * @exception IOException An exception is thrown if the file cannot be
+     * read or is not a columnar campaign file.
+     */
+    public ColumnarReader(String filename) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            _file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        _file.order(ByteOrder.LITTLE_ENDIAN);
+
+        int size = _file.capacity();
+        if (size < 20 || _file.getInt(0) != ColumnarSink.MAGIC
+                || _file.getInt(size - 4) != ColumnarSink.MAGIC) {
+            throw new IOException(filename + " is not a columnar campaign file");
+        }
+        if (_file.getInt(4) != ColumnarSink.VERSION) {
+            throw new IOException("Unsupported version " + _file.getInt(4) + " in " + filename);
+        }
+
+        ByteBuffer footer = _file.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        footer.position((int) _file.getLong(size - 12));
+        _rows = footer.getLong();
+        int count = footer.getInt();
+        for (int i = 0; i < count; i++) {
+            byte[] name = new byte[footer.getShort()];
+            footer.get(name);
+            long type = footer.get();
+            long offset = footer.getLong();
+            long length = footer.getLong();
+            _columns.put(new String(name, StandardCharsets.UTF_8), new long[] {type, offset, length});
+        }
+    }
+
+    /**
+     * @return long The number of campaign rows.
+     */
+    public long getRowCount() {
+        return _rows;
+    }
+
+    /**
+     * @return Set The column names, in file order.
+     */
+    public Set<String> getColumnNames() {
+        return _columns.keySet();
+    }
+
+    /**
+     * Returns a view of a long column (id, cpmMicros, totalClicks,
+     * totalViews). Missing values are ColumnarSink.NULL_LONG.
+     *
+     * @param name The column name.
+     * @return LongBuffer One value per row.
+     */
+    public LongBuffer getLongColumn(String name) {
+        return _slice(name, ColumnarSink.TYPE_LONG).asLongBuffer();
+    }
+
+    /**
+     * Returns a view of a double column (revenue). Missing values are NaN.
+     *
+     * @param name The column name.
+     * @return DoubleBuffer One value per row.
+     */
+    public DoubleBuffer getDoubleColumn(String name) {
+        return _slice(name, ColumnarSink.TYPE_DOUBLE).asDoubleBuffer();
+    }
+
+    /**
+     * Returns the dictionary codes of a string column (name, startDate).
+     * A code indexes the array returned by getDictionary; -1 is missing.
+     *
+     * @param name The column name.
+     * @return IntBuffer One code per row.
+     */
+    public IntBuffer getDictionaryCodes(String name) {
+        ByteBuffer column = _slice(name, ColumnarSink.TYPE_DICT);
+        column.limit((int) _rows * 4);
+        return column.asIntBuffer();
+    }
+
+    /**
+     * Decodes the dictionary of a string column.
+     *
+     * @param name The column name.
+     * @return String[] The distinct values, indexed by code.
+     */
+    public String[] getDictionary(String name) {
+        ByteBuffer column = _slice(name, ColumnarSink.TYPE_DICT);
+        column.position((int) _rows * 4);
+        String[] entries = new String[column.getInt()];
+        for (int i = 0; i < entries.length; i++) {
+            byte[] bytes = new byte[column.getInt()];
+            column.get(bytes);
+            entries[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return entries;
+    }
+
+    /**
+     * Sums a long column, skipping missing values.
+     *
+     * @param name The column name.
+     * @return long The sum.
+     */
+    public long sumLongColumn(String name) {
+        LongBuffer column = getLongColumn(name);
+        long sum = 0;
+        while (column.hasRemaining()) {
+            long value = column.get();
+            if (value != ColumnarSink.NULL_LONG) {
+                sum += value;
+            }
+        }
+        return sum;
+    }
+
+    private ByteBuffer _slice(String name, byte type) {
+        long[] column = _columns.get(name);
+        if (column == null) {
+            throw new IllegalArgumentException("No column " + name);
+        }
+        if (column[0] != type) {
+            throw new IllegalArgumentException("Column " + name + " has type " + column[0]);
+        }
+        ByteBuffer slice = _file.duplicate();
+        slice.position((int) column[1]);
+        slice.limit((int) (column[1] + column[2]));
+        return slice.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
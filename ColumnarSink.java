@@ -0,0 +1,250 @@
+/**
+ * A CampaignSink that writes the campaign totals in a compact binary
+ * columnar file, read back with ColumnarReader. Each column is stored
+ * contiguously so a reader can scan one column without touching the
+ * others.
+ *
+ * File layout (little endian, every column starts on an 8 byte boundary):
+ *
+ *   "CCOL" magic, int version
+ *   column data:
+ *     id, cpmMicros, totalClicks, totalViews   LONG:   long[rows]
+ *     revenue                                  DOUBLE: double[rows]
+ *     name, startDate                          DICT:   int[rows] codes,
+ *                                                      int entries,
+ *                                                      (int length, UTF-8 bytes)[entries]
+ *   footer:
+ *     long rows, int columns,
+ *     (short name length, UTF-8 name, byte type, long offset, long length)[columns]
+ *   long footer offset, "CCOL" magic
+ *
+ * Missing values are stored as NULL_LONG, NaN or dictionary code -1.
+ * Rows are buffered in primitive arrays until close(), when the file is
+ * written under a unique temporary name and renamed into place.
+ *
+ * Filename: ColumnarSink.java
+ * @author: David Wang
+ *
+ */
+
+import com.mongodb.DBObject;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ColumnarSink implements CampaignSink {
+
+    public static final int MAGIC = 0x4c4f4343; // "CCOL" read little endian
+    public static final int VERSION = 1;
+    public static final byte TYPE_LONG = 1;
+    public static final byte TYPE_DOUBLE = 2;
+    public static final byte TYPE_DICT = 3;
+    public static final long NULL_LONG = Long.MIN_VALUE;
+
+    private static final String[] _LONG_COLUMNS = {
+        "id", "cpmMicros", "totalClicks", "totalViews"
+    };
+    private static final String[] _DICT_COLUMNS = {"name", "startDate"};
+
+    private final Path _target;
+    private int _rows = 0;
+    private long[][] _longs = new long[_LONG_COLUMNS.length][1024];
+    private double[] _revenue = new double[1024];
+    private int[][] _codes = new int[_DICT_COLUMNS.length][1024];
+    private final List<Map<String, Integer>> _dictionaries = new ArrayList<Map<String, Integer>>();
+
+    /**
+     * @param filename The file to create or replace when the sink is closed.
+     */
+    public ColumnarSink(String filename) {
+        _target = Paths.get(filename).toAbsolutePath();
+        for (int i = 0; i < _DICT_COLUMNS.length; i++) {
+            _dictionaries.add(new HashMap<String, Integer>());
+        }
+        System.out.println("Writing campaigns to " + _target + "...");
+    }
+
+    public void accept(DBObject obj) throws IOException {
+        if (_rows == _revenue.length) {
+            _grow();
+        }
+        for (int c = 0; c < _LONG_COLUMNS.length; c++) {
+            String field = c == 0 ? "_id" : _LONG_COLUMNS[c];
+            _longs[c][_rows] = _toLong(obj.get(field), field);
+        }
+        Object revenue = obj.get("revenue");
+        _revenue[_rows] = revenue == null ? Double.NaN : ((Number) revenue).doubleValue();
+        for (int c = 0; c < _DICT_COLUMNS.length; c++) {
+            _codes[c][_rows] = _encode(_dictionaries.get(c), obj.get(_DICT_COLUMNS[c]));
+        }
+        _rows++;
+    }
+
+    public void close() throws IOException {
+        Path temp = CSVExportWriter.createTempSibling(_target);
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            List<Object[]> footer = new ArrayList<Object[]>();
+
+            ByteBuffer header = _buffer(8);
+            header.putInt(MAGIC).putInt(VERSION);
+            long position = _write(channel, header);
+
+            for (int c = 0; c < _LONG_COLUMNS.length; c++) {
+                ByteBuffer column = _buffer(_rows * 8);
+                column.asLongBuffer().put(_longs[c], 0, _rows);
+                column.position(_rows * 8);
+                footer.add(new Object[] {_LONG_COLUMNS[c], TYPE_LONG, position, (long) _rows * 8});
+                position += _write(channel, column);
+            }
+
+            ByteBuffer revenue = _buffer(_rows * 8);
+            revenue.asDoubleBuffer().put(_revenue, 0, _rows);
+            revenue.position(_rows * 8);
+            footer.add(new Object[] {"revenue", TYPE_DOUBLE, position, (long) _rows * 8});
+            position += _write(channel, revenue);
+
+            for (int c = 0; c < _DICT_COLUMNS.length; c++) {
+                ByteBuffer column = _dictionaryColumn(_codes[c], _dictionaries.get(c));
+                long length = column.position();
+                footer.add(new Object[] {_DICT_COLUMNS[c], TYPE_DICT, position, length});
+                position += _write(channel, column);
+            }
+
+            long footerOffset = position;
+            ByteBuffer index = _buffer(12 + footer.size() * 64);
+            index.putLong(_rows).putInt(footer.size());
+            for (Object[] column : footer) {
+                byte[] name = ((String) column[0]).getBytes(StandardCharsets.UTF_8);
+                index.putShort((short) name.length).put(name).put((Byte) column[1])
+                     .putLong((Long) column[2]).putLong((Long) column[3]);
+            }
+            index.putLong(footerOffset).putInt(MAGIC);
+            // The trailer must be the last 12 bytes, so no padding here.
+            index.flip();
+            while (index.hasRemaining()) {
+                channel.write(index);
+            }
+            channel.force(true);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+
+        try {
+            try {
+                Files.move(temp, _target, StandardCopyOption.REPLACE_EXISTING,
+                           StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, _target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        System.out.println("Finished writing " + _rows + " campaigns to " + _target);
+    }
+
+    public void abort() {
+        // Nothing has been written to disk yet.
+        _rows = 0;
+    }
+
+    private void _grow() {
+        int capacity = _revenue.length * 2;
+        for (int c = 0; c < _longs.length; c++) {
+            _longs[c] = Arrays.copyOf(_longs[c], capacity);
+        }
+        for (int c = 0; c < _codes.length; c++) {
+            _codes[c] = Arrays.copyOf(_codes[c], capacity);
+        }
+        _revenue = Arrays.copyOf(_revenue, capacity);
+    }
+
+    private static long _toLong(Object value, String field) throws IOException {
+        if (value == null) {
+            return NULL_LONG;
+        }
+        if (!(value instanceof Integer || value instanceof Long)) {
+            // Whole numbers stored as doubles are accepted.
+            if (value instanceof Double && ((Double) value) == Math.rint((Double) value)) {
+                return ((Double) value).longValue();
+            }
+            throw new IOException("Field " + field + " is not an integer: " + value);
+        }
+        return ((Number) value).longValue();
+    }
+
+    private static int _encode(Map<String, Integer> dictionary, Object value) {
+        if (value == null) {
+            return -1;
+        }
+        String key = value.toString();
+        Integer code = dictionary.get(key);
+        if (code == null) {
+            code = dictionary.size();
+            dictionary.put(key, code);
+        }
+        return code;
+    }
+
+    /**
+     * Serializes the codes followed by the dictionary entries in code order.
+     */
+    private ByteBuffer _dictionaryColumn(int[] codes, Map<String, Integer> dictionary) {
+        byte[][] entries = new byte[dictionary.size()][];
+        int size = _rows * 4 + 4;
+        for (Map.Entry<String, Integer> entry : dictionary.entrySet()) {
+            byte[] bytes = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            entries[entry.getValue()] = bytes;
+            size += 4 + bytes.length;
+        }
+
+        ByteBuffer column = _buffer(size);
+        column.asIntBuffer().put(codes, 0, _rows);
+        column.position(_rows * 4);
+        column.putInt(entries.length);
+        for (byte[] bytes : entries) {
+            column.putInt(bytes.length).put(bytes);
+        }
+        return column;
+    }
+
+    private static ByteBuffer _buffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Writes the buffer's content, padded to a multiple of 8 bytes.
+     *
+     * @return long The number of bytes written including padding.
+     */
+    private static long _write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        int length = buffer.position();
+        int padded = (length + 7) & ~7;
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        if (padded > length) {
+            ByteBuffer padding = ByteBuffer.allocate(padded - length);
+            while (padding.hasRemaining()) {
+                channel.write(padding);
+            }
+        }
+        return padded;
+    }
+}
@@ -0,0 +1,24 @@
+/**
+ * A CampaignSink that prints every row to standard out.
+ *
+ * Filename: ConsoleSink.java
+ * @author: David Wang
+ *
+ */
+
+import com.mongodb.DBObject;
+
+public class ConsoleSink implements CampaignSink {
+
+    public void accept(DBObject campaign) {
+        System.out.println(campaign);
+    }
+
+    public void close() {
+        System.out.flush();
+    }
+
+    public void abort() {
+        System.out.flush();
+    }
+}
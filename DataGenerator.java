@@ -0,0 +1,176 @@
+/**
+ * Generates synthetic campaigns and creatives in the same JSON shape as the
+ * Ad-Juster API, for benchmarks and the local API server. The output only
+ * depends on the parameters and the seed, so runs are repeatable.
+ *
+ * Campaign: {"id": 1, "name": "Campaign 1", "cpm": "$12.34", "startDate": "2017-05-20"}
+ * Creative: {"id": 1, "parentId": 1, "clicks": 123, "views": 4567}
+ *
+ * Creatives are numbered from 1 and creative n belongs to campaign
+ * (n - 1) / fanOut + 1, so every campaign has exactly fanOut creatives.
+ *
+ * Filename: DataGenerator.java
+ * @author: David Wang
+ *
+ */
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class DataGenerator {
+
+    public static final long DEFAULT_SEED = 42;
+
+    private final int _campaigns;
+    private final int _fanOut;
+    private final long _seed;
+
+    /**
+     * @param campaigns The number of campaigns.
+     * @param fanOut The number of creatives per campaign.
+     * @param seed The random seed.
+     */
+    public DataGenerator(int campaigns, int fanOut, long seed) {
+        _campaigns = campaigns;
+        _fanOut = fanOut;
+        _seed = seed;
+    }
+
+    public DataGenerator(int campaigns, int fanOut) {
+        this(campaigns, fanOut, DEFAULT_SEED);
+    }
+
+    public int getCampaignCount() {
+        return _campaigns;
+    }
+
+    public long getCreativeCount() {
+        return (long) _campaigns * _fanOut;
+    }
+
+    public long getSeed() {
+        return _seed;
+    }
+
+    /**
+     * Writes the campaigns as a JSON array.
+     *
+     * @param out The destination; it is flushed but not closed.
+     * @exception IOException An exception is thrown if the writer fails.
+     * @return None
+     */
+    public void writeCampaigns(Writer out) throws IOException {
+        Random random = new Random(_seed);
+        out.write('[');
+        for (int id = 1; id <= _campaigns; id++) {
+            if (id > 1) {
+                out.write(',');
+            }
+            out.write("{\"id\":" + id
+                    + ",\"name\":\"Campaign " + id + "\""
+                    + ",\"cpm\":\"" + _cpm(random) + "\""
+                    + ",\"startDate\":\"" + _startDate(random) + "\"}");
+        }
+        out.write(']');
+        out.flush();
+    }
+
+    /**
+     * Writes the creatives as a JSON array.
+     *
+     * @param out The destination; it is flushed but not closed.
+     * @exception IOException An exception is thrown if the writer fails.
+     * @return None
+     */
+    public void writeCreatives(Writer out) throws IOException {
+        Random random = new Random(_seed + 1);
+        out.write('[');
+        long count = getCreativeCount();
+        for (long id = 1; id <= count; id++) {
+            if (id > 1) {
+                out.write(',');
+            }
+            long parentId = (id - 1) / _fanOut + 1;
+            out.write("{\"id\":" + id
+                    + ",\"parentId\":" + parentId
+                    + ",\"clicks\":" + random.nextInt(1000)
+                    + ",\"views\":" + random.nextInt(100000) + "}");
+        }
+        out.write(']');
+        out.flush();
+    }
+
+    /**
+     * @return byte[] The campaigns JSON array in UTF-8.
+     */
+    public byte[] campaignsJSON() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writeCampaigns(new OutputStreamWriter(bytes, StandardCharsets.UTF_8));
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return byte[] The creatives JSON array in UTF-8.
+     */
+    public byte[] creativesJSON() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writeCreatives(new OutputStreamWriter(bytes, StandardCharsets.UTF_8));
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Builds campaign totals rows shaped like the output of
+     * Db.getTotalClicksAndViewsFromCampaigns(), for exporter benchmarks.
+     *
+     * @return List One row per campaign.
+     */
+    public List<DBObject> campaignTotals() {
+        Random random = new Random(_seed);
+        Random metrics = new Random(_seed + 1);
+        List<DBObject> rows = new ArrayList<DBObject>(_campaigns);
+        for (int id = 1; id <= _campaigns; id++) {
+            String cpm = _cpm(random);
+            String startDate = _startDate(random);
+            long clicks = 0;
+            long views = 0;
+            for (int i = 0; i < _fanOut; i++) {
+                clicks += metrics.nextInt(1000);
+                views += metrics.nextInt(100000);
+            }
+            long cpmMicros = Db.parseMicroDollars(cpm);
+            long revenueNanos = cpmMicros * views;
+
+            DBObject row = new BasicDBObject("_id", id);
+            row.put("cpm", cpm);
+            row.put("cpmMicros", cpmMicros);
+            row.put("name", "Campaign " + id);
+            row.put("startDate", startDate);
+            row.put("totalClicks", clicks);
+            row.put("totalViews", views);
+            row.put("revenueNanos", revenueNanos);
+            row.put("revenue", revenueNanos / (double) Db.NANOS_PER_DOLLAR);
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    private static String _cpm(Random random) {
+        int cents = 100 + random.nextInt(9900);
+        return "$" + (cents / 100) + "." + (cents % 100 < 10 ? "0" : "") + (cents % 100);
+    }
+
+    private static String _startDate(Random random) {
+        int month = 1 + random.nextInt(12);
+        int day = 1 + random.nextInt(28);
+        return "2017-" + (month < 10 ? "0" : "") + month + "-" + (day < 10 ? "0" : "") + day;
+    }
+}
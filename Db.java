@@ -8,36 +8,150 @@
 
 import com.mongodb.AggregationOutput;
 import com.mongodb.AggregationOptions;
+import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
 import com.mongodb.BulkWriteOperation;
 import com.mongodb.BulkWriteResult;
+import com.mongodb.CommandResult;
 import com.mongodb.Cursor;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import com.mongodb.MongoClient;
-import com.mongodb.ParallelScanOptions;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoException;
+import com.mongodb.ReadPreference;
 import com.mongodb.ServerAddress;
+import com.mongodb.WriteConcern;
 import com.mongodb.WriteResult;
 import com.mongodb.util.JSON;
 
+import java.io.IOException;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
 
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 public class Db {
 
-	private static final String _HOST_NAME = "localhost";
-	private static final int _PORT = 27017;
-	private static final String _DATABASE_NAME = "client";
+	private static final String _HOST_NAME = System.getProperty("db.host", "localhost");
+	private static final int _PORT = Integer.getInteger("db.port", 27017);
+	private static final String _DATABASE_NAME = System.getProperty("db.name", "client");
+
+    // Connection pool settings. Each can be overridden with the matching
+    // -Ddb.* system property.
+    private static final int _CONNECTIONS_PER_HOST = Integer.getInteger("db.connectionsPerHost", 20);
+    private static final int _CONNECT_TIMEOUT_MS = Integer.getInteger("db.connectTimeoutMs", 10000);
+    private static final int _SOCKET_TIMEOUT_MS = Integer.getInteger("db.socketTimeoutMs", 0);
+    private static final int _MAX_WAIT_TIME_MS = Integer.getInteger("db.maxWaitTimeMs", 120000);
+    private static final String _WRITE_CONCERN = System.getProperty("db.writeConcern", "ACKNOWLEDGED");
+    private static final String _READ_PREFERENCE = System.getProperty("db.readPreference", "primary");
+
+    // Bulk load settings. Records are written in batches of BATCH_SIZE by
+    // WRITER_THREADS concurrent unordered bulk operations.
+    public static final int BATCH_SIZE = Integer.getInteger("db.batchSize", 1000);
+    public static final int WRITER_THREADS = Integer.getInteger("db.writerThreads", 4);
+
+    // The one client shared by every operation. Created on first use by
+    // _connect() and released by close().
+    private static MongoClient _mongoClient;
+
+    // Threads that write the batches of bulkInsertObjects(), shared by
+    // every call so a load does not start a new pool per insert. Created on
+    // first use by _writers() and shut down by close().
+    private static ExecutorService _writerPool;
+
+    // Incremented after every write made through Db, so readers can tell
+    // whether what they cached is still current.
+    private static final AtomicLong _writeGeneration = new AtomicLong();
+
 	public static final String CAMPAIGNS_COLLECTION = "campaigns";
 	public static final String CREATIVES_COLLECTION = "creatives";
+	public static final String SYNC_CHECKPOINTS_COLLECTION = "sync_checkpoints";
+	public static final String CAMPAIGN_TOTALS_COLLECTION = "campaign_totals";
+	public static final String CAMPAIGN_ROLLUPS_COLLECTION = "campaign_rollups";
+
+    // Indexes the queries rely on, as {collection, field, ...}.
+    // campaigns.id is the foreignField of the $lookup and creatives.parentId
+    // is used to select the creatives of a campaign.
+    private static final String[][] _INDEXES = {
+        {CAMPAIGNS_COLLECTION, "id"},
+        {CREATIVES_COLLECTION, "parentId"},
+    };
+
+    // Pipelines that getTotalClicksAndViewsFromCampaigns() can run. The
+    // default is chosen with -Ddb.totalsStrategy.
+    public static final String LOOKUP_FIRST = "lookupFirst";
+    public static final String GROUP_FIRST = "groupFirst";
+    private static final String _TOTALS_STRATEGY = System.getProperty("db.totalsStrategy", LOOKUP_FIRST);
+
+    // Periods the campaign totals are rolled up by, on campaign startDate.
+    // A bucket starts on the day, on the Monday of the ISO week or on the
+    // first of the month, written as yyyy-MM-dd.
+    public static final String DAY = "day";
+    public static final String WEEK = "week";
+    public static final String MONTH = "month";
+    private static final List<String> _ROLLUP_PERIODS = Arrays.asList(DAY, WEEK, MONTH);
+
+    // startDate values that can be bucketed start with a valid yyyy-MM-dd
+    // date: the day must exist in its month, and 02-29 only in leap years.
+    // $dateFromString fails the whole aggregation on a date like 2017-02-30,
+    // so invalid dates are filtered out by this pattern first.
+    private static final String _START_DATE_PATTERN = "^(?:[0-9]{4}-(?:"
+            + "(?:0[13578]|1[02])-(?:0[1-9]|[12][0-9]|3[01])"
+            + "|(?:0[469]|11)-(?:0[1-9]|[12][0-9]|30)"
+            + "|02-(?:0[1-9]|1[0-9]|2[0-8]))"
+            + "|(?:[0-9]{2}(?:0[48]|[2468][048]|[13579][26])|(?:[02468][048]|[13579][26])00)-02-29)";
+    private static final Pattern _START_DATE = Pattern.compile(_START_DATE_PATTERN);
+
+    // Number of parentId ranges the totals pipeline is split into and run
+    // concurrently. 1 runs it as a single aggregation.
+    private static final int _TOTALS_PARTITIONS = Integer.getInteger("db.totalsPartitions", 1);
+
+    // Fields of a campaign totals row.
+    private static final String[] _TOTALS_FIELDS = {
+        "_id", "cpm", "name", "startDate", "totalClicks", "totalViews",
+        "cpmMicros", "revenueNanos", "revenue"
+    };
+
+    // Campaign cpm strings such as "$46.00" are also stored as an integer
+    // number of millionths of a dollar in this field.
+    public static final String CPM_MICROS_FIELD = "cpmMicros";
+    public static final int MICROS_PER_DOLLAR = 1000000;
+    // Revenue is kept exactly as cpmMicros * views, in billionths of a dollar.
+    public static final long NANOS_PER_DOLLAR = 1000000000L;
+
+    // Field holding the content hash of a synced document.
+    public static final String CONTENT_HASH_FIELD = "_contentHash";
+
+    // Field of a sync checkpoint holding the version (ETag or Last-Modified)
+    // of the API response the collection was loaded from.
+    public static final String API_VERSION_FIELD = "apiVersion";
 
     /**
      * Use the MongoDB aggregate command to join the creatives with parentIds
@@ -85,21 +199,790 @@ public class Db {
 		])
      /////////////////// END QUERY ///////////////////
      *
-     * @exception Exception Thrown if an error occurs when connecting with the db.
-     * @return Cursor A cursor to the first DBObject.
+     * @exception Exception Thrown if an error occurs when connecting with the db.
+     * @return Cursor A cursor to the first DBObject.
+     */
+    public static Cursor getTotalClicksAndViewsFromCampaigns() throws Exception {
+        return getTotalClicksAndViewsFromCampaigns(_TOTALS_STRATEGY);
+    }
+
+    /**
+     * Same as getTotalClicksAndViewsFromCampaigns() but with an explicit
+     * choice of pipeline.
+     *
+     * LOOKUP_FIRST is the pipeline described above: every creative is
+     * joined to its campaign and the merged documents are then grouped.
+     *
+     * GROUP_FIRST sums the clicks and views of the creatives per parentId
+     * first and only joins the grouped rows to campaigns, so the $lookup
+     * runs once per campaign instead of once per creative:
+     *
+     /////////////////// BEGIN QUERY ///////////////////
+		db.creatives.aggregate([
+			{
+				$group:
+				{
+					_id: "$parentId",
+					totalClicks: {$sum: "$clicks"},
+					totalViews: {$sum: "$views"}
+				}
+			},
+			{
+				$lookup: {
+					from: "campaigns",
+					localField: "_id",
+					foreignField: "id",
+					as: "fromCampaigns"
+				}
+			},
+			{
+				$project:
+				{
+					cpm: {$arrayElemAt: ["$fromCampaigns.cpm", 0]},
+					cpmMicros: {$arrayElemAt: ["$fromCampaigns.cpmMicros", 0]},
+					name: {$arrayElemAt: ["$fromCampaigns.name", 0]},
+					startDate: {$arrayElemAt: ["$fromCampaigns.startDate", 0]},
+					totalClicks: 1,
+					totalViews: 1
+				}
+			}
+		])
+     /////////////////// END QUERY ///////////////////
+     *
+     * Both return the same rows as long as creatives don't carry their own
+     * cpm, name or startDate fields (LOOKUP_FIRST would let those override
+     * the campaign's). compareTotalsStrategies() checks this on the data.
+     *
+     * Either way two more stages compute the revenue on the server from the
+     * fixed-point cpmMicros field added at ingest (see parseMicroDollars):
+     *
+     /////////////////// BEGIN QUERY ///////////////////
+			{$addFields: {revenueNanos: {$multiply: ["$cpmMicros", "$totalViews"]}}},
+			{$addFields: {revenue: {$divide: ["$revenueNanos", 1000000000]}}}
+     /////////////////// END QUERY ///////////////////
+     *
+     * cpm * views / 1000 dollars is cpmMicros * totalViews billionths of a
+     * dollar, so revenueNanos is the exact revenue as a 64-bit integer. The
+     * only rounding happens in the one division that converts it to
+     * dollars.
+     *
+     * @param strategy LOOKUP_FIRST or GROUP_FIRST.
+     * @exception Exception Thrown if an error occurs when connecting with the db.
+     * @return Cursor A cursor to the first DBObject.
+     */
+    public static Cursor getTotalClicksAndViewsFromCampaigns(String strategy) throws Exception {
+        if (_TOTALS_PARTITIONS > 1) {
+            return getPartitionedTotals(strategy, _TOTALS_PARTITIONS);
+        }
+        DB db = _connect();
+        DBCollection coll = db.getCollection(CREATIVES_COLLECTION);
+        System.out.println("Performing aggregation query of" 
+              +  " campaigns and creatives (" + strategy + ")...");
+
+        long start = Metrics.start();
+        Cursor cursor = Metrics.timeCursor("db.aggregate", start,
+                coll.aggregate(_totalsPipeline(strategy), _cursorOptions()));
+
+        System.out.println("Aggregation Query Complete");
+
+        return cursor;
+    }
+
+    /**
+     * Runs the totals pipeline as one aggregation per parentId range, all
+     * at the same time, so the server can spread the join and grouping work
+     * over several cores. The ranges are split points of the numeric
+     * campaigns.id picked by $bucketAuto, so each holds about the same number
+     * of campaigns:
+     *
+     /////////////////// BEGIN QUERY ///////////////////
+		db.campaigns.aggregate([
+			{$match: {id: {$type: "number"}}},
+			{$bucketAuto: {groupBy: "$id", buckets: partitions}}
+		])
+     /////////////////// END QUERY ///////////////////
+     *
+     * Each partition prepends a $match on its parentId range to the pipeline
+     * and appends {$sort: {_id: 1}}. The first range is open below and also
+     * holds null and missing parentIds, and the last numeric range is open
+     * above. parentIds that are neither numbers nor null, such as strings,
+     * get a partition of their own after the numeric ones, since mongoDB
+     * sorts them after every number. The partitions are read back in that
+     * order, which returns the rows in campaign id order.
+     *
+     * @param strategy LOOKUP_FIRST or GROUP_FIRST.
+     * @param partitions The number of ranges to split parentId into.
+     * @exception Exception Thrown if an error occurs when connecting with the db.
+     * @return Cursor A cursor over the rows of every partition.
+     */
+    public static Cursor getPartitionedTotals(final String strategy, int partitions) throws Exception {
+        if (partitions <= 0) {
+            throw new IllegalArgumentException("partitions must be positive");
+        }
+        DB db = _connect();
+        final DBCollection coll = db.getCollection(CREATIVES_COLLECTION);
+        List<DBObject> ranges = _parentIdRanges(partitions);
+        System.out.println("Performing aggregation query of campaigns and creatives ("
+                + strategy + ", " + ranges.size() + " partitions)...");
+
+        final long start = Metrics.start();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, ranges.size()));
+        List<Future<Cursor>> results = new ArrayList<Future<Cursor>>(ranges.size());
+        try {
+            for (final DBObject range : ranges) {
+                results.add(executor.submit(new Callable<Cursor>() {
+                    public Cursor call() {
+                        List<DBObject> pipeline = _totalsPipeline(strategy);
+                        if (!range.keySet().isEmpty()) {
+                            pipeline.add(0, new BasicDBObject("$match", range));
+                        }
+                        pipeline.add(new BasicDBObject("$sort", new BasicDBObject("_id", 1)));
+                        return Metrics.timeCursor("db.aggregatePartition", start,
+                                coll.aggregate(pipeline, _cursorOptions()));
+                    }
+                }));
+            }
+        } catch (RuntimeException e) {
+            executor.shutdownNow();
+            throw e;
+        }
+        executor.shutdown();
+        return new PartitionedCursor(results, executor);
+    }
+
+    /**
+     * Splits the numeric campaign ids into at most partitions consecutive
+     * ranges and returns the creatives query of each, in _id sort order,
+     * e.g. {parentId: {$gte: 100, $lt: 200}}. The first range has no lower
+     * bound and matches null and missing parentIds too; the last numeric
+     * range has no upper bound and is followed by a query for the parentIds
+     * of any other type. A single range is an empty query.
+     */
+    private static List<DBObject> _parentIdRanges(int partitions) throws Exception {
+        DBCollection campaigns = _connect().getCollection(CAMPAIGNS_COLLECTION);
+        List<DBObject> pipeline = new ArrayList<DBObject>();
+        // Split on numbers only: $gte and $lt on a number never match
+        // another type, so the other ids are given their own range below.
+        pipeline.add(new BasicDBObject("$match",
+                new BasicDBObject("id", new BasicDBObject("$type", "number"))));
+        pipeline.add(new BasicDBObject("$bucketAuto",
+                new BasicDBObject("groupBy", "$id").append("buckets", partitions)));
+
+        // Each bucket's _id is {min, max}; max is the next bucket's min.
+        List<Object> splits = new ArrayList<Object>();
+        Cursor buckets = campaigns.aggregate(pipeline, _cursorOptions());
+        try {
+            while (buckets.hasNext()) {
+                DBObject bounds = (DBObject) buckets.next().get("_id");
+                if (buckets.hasNext()) {
+                    splits.add(bounds.get("max"));
+                }
+            }
+        } finally {
+            buckets.close();
+        }
+
+        List<DBObject> ranges = new ArrayList<DBObject>(splits.size() + 2);
+        if (splits.isEmpty()) {
+            ranges.add(new BasicDBObject());
+            return ranges;
+        }
+        for (int i = 0; i <= splits.size(); i++) {
+            if (i == 0) {
+                // null and missing sort before every number.
+                ranges.add(new BasicDBObject("$or", Arrays.asList(
+                        new BasicDBObject("parentId", new BasicDBObject("$lt", splits.get(0))),
+                        new BasicDBObject("parentId", null))));
+                continue;
+            }
+            BasicDBObject range = new BasicDBObject("$gte", splits.get(i - 1));
+            if (i < splits.size()) {
+                range.append("$lt", splits.get(i));
+            }
+            ranges.add(new BasicDBObject("parentId", range));
+        }
+        // Strings and every other type sort after the numbers.
+        ranges.add(new BasicDBObject("parentId",
+                new BasicDBObject("$not", new BasicDBObject("$type", "number"))
+                        .append("$ne", null)));
+        return ranges;
+    }
+
+    /**
+     * Rebuilds the CAMPAIGN_TOTALS_COLLECTION from scratch by running the
+     * totals pipeline once with an $out stage. Reports can then read the
+     * precomputed rows with getCampaignTotals() instead of aggregating again.
+     *
+     * With -Ddb.totalsPartitions above 1 the rows come from
+     * getPartitionedTotals() instead. $out always replaces the whole
+     * collection, so the partitions are written to a temporary collection
+     * that is then renamed over CAMPAIGN_TOTALS_COLLECTION.
+     *
+     * @exception Exception Thrown if an error occurs when connecting with the db.
+     * @return None
+     */
+    public static void materializeCampaignTotals() throws Exception {
+        if (_TOTALS_PARTITIONS > 1) {
+            _materializePartitionedTotals();
+            materializeRollups();
+            return;
+        }
+        DBCollection coll = _connect().getCollection(CREATIVES_COLLECTION);
+        System.out.println("Materializing " + CAMPAIGN_TOTALS_COLLECTION + "...");
+
+        List<DBObject> pipeline = _totalsPipeline(_TOTALS_STRATEGY);
+        pipeline.add(new BasicDBObject("$out", CAMPAIGN_TOTALS_COLLECTION));
+        long start = Metrics.start();
+        coll.aggregate(pipeline, _cursorOptions()).close();
+        Metrics.stop("db.materialize", start);
+        _wrote();
+
+        System.out.println("Materialized " + getCollectionCount(CAMPAIGN_TOTALS_COLLECTION)
+                + " campaign totals");
+        materializeRollups();
+    }
+
+    /**
+     * Copies the partitioned totals into a temporary collection in batches
+     * and renames it over CAMPAIGN_TOTALS_COLLECTION.
+     */
+    private static void _materializePartitionedTotals() throws Exception {
+        DB db = _connect();
+        System.out.println("Materializing " + CAMPAIGN_TOTALS_COLLECTION + "...");
+        long start = Metrics.start();
+
+        DBCollection tmp = db.getCollection(CAMPAIGN_TOTALS_COLLECTION + "_tmp");
+        tmp.drop();
+        Cursor cursor = getPartitionedTotals(_TOTALS_STRATEGY, _TOTALS_PARTITIONS);
+        try {
+            List<DBObject> batch = new ArrayList<DBObject>(BATCH_SIZE);
+            while (cursor.hasNext()) {
+                batch.add(cursor.next());
+                if (batch.size() == BATCH_SIZE || !cursor.hasNext()) {
+                    _insertBatch(tmp, batch, CAMPAIGN_TOTALS_COLLECTION + " batch");
+                    batch.clear();
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        if (tmp.count() == 0) {
+            // rename fails on a collection that was never created.
+            db.getCollection(CAMPAIGN_TOTALS_COLLECTION).drop();
+        } else {
+            tmp.rename(CAMPAIGN_TOTALS_COLLECTION, true);
+        }
+        Metrics.stop("db.materialize", start);
+        _wrote();
+
+        System.out.println("Materialized " + getCollectionCount(CAMPAIGN_TOTALS_COLLECTION)
+                + " campaign totals");
+    }
+
+    /**
+     * Recomputes the rows of CAMPAIGN_TOTALS_COLLECTION for the given
+     * campaign ids only. The totals pipeline runs on just the creatives of
+     * those campaigns (selected through the creatives.parentId index) and
+     * each result replaces the stored row. Campaigns that no longer have
+     * any creatives are removed.
+     *
+     * @param campaignIds The ids of the campaigns whose campaign or
+     * creatives changed.
+     * @exception Exception Thrown if an error occurs when connecting with the db.
+     * @return None
+     */
+    public static void refreshCampaignTotals(Collection<Object> campaignIds) throws Exception {
+        if (campaignIds.isEmpty()) {
+            return;
+        }
+        DB db = _connect();
+        DBCollection creatives = db.getCollection(CREATIVES_COLLECTION);
+        DBCollection totals = db.getCollection(CAMPAIGN_TOTALS_COLLECTION);
+
+        List<DBObject> pipeline = _totalsPipeline(_TOTALS_STRATEGY);
+        pipeline.add(0, new BasicDBObject("$match", new BasicDBObject("parentId",
+                new BasicDBObject("$in", new ArrayList<Object>(campaignIds)))));
+
+        long start = Metrics.start();
+        Set<Object> stale = new HashSet<Object>(campaignIds);
+        BulkWriteOperation bulk = totals.initializeUnorderedBulkOperation();
+        Cursor cursor = creatives.aggregate(pipeline, _cursorOptions());
+        try {
+            while (cursor.hasNext()) {
+                DBObject row = cursor.next();
+                stale.remove(row.get("_id"));
+                bulk.find(new BasicDBObject("_id", row.get("_id"))).upsert().replaceOne(row);
+            }
+        } finally {
+            cursor.close();
+        }
+        for (Object id : stale) {
+            bulk.find(new BasicDBObject("_id", id)).remove();
+        }
+        bulk.execute();
+        Metrics.stop("db.refreshTotals", start);
+        _wrote();
+        System.out.println("Refreshed " + campaignIds.size() + " campaign totals");
+        materializeRollups();
+    }
+
+    /**
+     * Rebuilds CAMPAIGN_ROLLUPS_COLLECTION from CAMPAIGN_TOTALS_COLLECTION.
+     * Each campaign's totals are added to one bucket per period (DAY, WEEK
+     * and MONTH) of its startDate, so a date range can be answered from a
+     * few buckets instead of the creatives. Called whenever the totals
+     * change; it reads one row per campaign, so it is cheap next to the
+     * totals pipeline.
+     *
+     /////////////////// BEGIN QUERY ///////////////////
+		db.campaign_totals.aggregate([
+			{$match: {startDate: {$regex: _START_DATE_PATTERN}}},
+			{$addFields: {day: {$substrBytes: ["$startDate", 0, 10]}}},
+			{$addFields: {date: {$dateFromString: {dateString: "$day"}}}},
+			{
+				$project:
+				{
+					totalClicks: 1,
+					totalViews: 1,
+					revenueNanos: 1,
+					buckets: [
+						{period: "day", start: "$day"},
+						{period: "week", start: {$dateToString: {format: "%Y-%m-%d", date:
+							{$subtract: ["$date", {$multiply: [{$subtract: [{$isoDayOfWeek: "$date"}, 1]}, 86400000]}]}}}},
+						{period: "month", start: {$concat: [{$substrBytes: ["$day", 0, 7]}, "-01"]}}
+					]
+				}
+			},
+			{$unwind: "$buckets"},
+			{
+				$group:
+				{
+					_id: "$buckets",
+					campaigns: {$sum: 1},
+					totalClicks: {$sum: "$totalClicks"},
+					totalViews: {$sum: "$totalViews"},
+					revenueNanos: {$sum: "$revenueNanos"}
+				}
+			},
+			{
+				$project:
+				{
+					_id: {$concat: ["$_id.period", ":", "$_id.start"]},
+					period: "$_id.period",
+					start: "$_id.start",
+					campaigns: 1,
+					totalClicks: 1,
+					totalViews: 1,
+					revenueNanos: 1,
+					revenue: {$divide: ["$revenueNanos", 1000000000]}
+				}
+			},
+			{$out: "campaign_rollups"}
+		])
+     /////////////////// END QUERY ///////////////////
+     *
+     * Campaigns whose startDate does not start with a valid yyyy-MM-dd
+     * date, such as 2017-02-30, are left out of the rollups. The rollups
+     * are optional, so if the aggregation fails anyway a warning is printed
+     * and the rollups collection is dropped rather than failing the load.
+     *
+     * @exception Exception Thrown if an error occurs when connecting with the db.
+     * @return None
+     */
+    public static void materializeRollups() throws Exception {
+        DBCollection coll = _connect().getCollection(CAMPAIGN_TOTALS_COLLECTION);
+        long start = Metrics.start();
+
+        List<DBObject> pipeline = _rollupPipeline();
+        pipeline.add(new BasicDBObject("$out", CAMPAIGN_ROLLUPS_COLLECTION));
+        try {
+            coll.aggregate(pipeline, _cursorOptions()).close();
+        } catch (MongoException e) {
+            System.err.println("Warning: skipping the campaign rollups: " + e.getMessage());
+            _connect().getCollection(CAMPAIGN_ROLLUPS_COLLECTION).drop();
+            _wrote();
+            return;
+        }
+        ensureIndex(CAMPAIGN_ROLLUPS_COLLECTION, "period", "start");
+
+        Metrics.stop("db.rollups", start);
+        _wrote();
+        System.out.println("Materialized " + getCollectionCount(CAMPAIGN_ROLLUPS_COLLECTION)
+                + " campaign rollups");
+    }
+
+    /**
+     * Returns the rollup buckets of the period whose start is in
+     * [from, to), in start order. Each row has _id, period, start,
+     * campaigns (the number of campaigns that started in the bucket),
+     * totalClicks, totalViews, revenueNanos and revenue.
+     *
+     * @param period DAY, WEEK or MONTH.
+     * @param from The first bucket start as yyyy-MM-dd, or null for no limit.
+     * @param to The bucket start to stop before, or null for no limit.
+     * @exception Exception Thrown if an error occurs when connecting with the db.
+     * @return Cursor A cursor to the first bucket.
+     */
+    public static Cursor getRollups(String period, String from, String to) throws Exception {
+        DBCollection coll = _connect().getCollection(CAMPAIGN_ROLLUPS_COLLECTION);
+        return coll.find(_rollupQuery(period, from, to)).sort(new BasicDBObject("start", 1));
+    }
+
+    /**
+     * Merges the rollup buckets of the period whose start is in [from, to)
+     * into one row, e.g. the totals of the campaigns started in a month
+     * from its DAY buckets. The row has the fields of a bucket, without
+     * period and start, plus the number of buckets merged.
+     *
+     /////////////////// BEGIN QUERY ///////////////////
+		db.campaign_rollups.aggregate([
+			{$match: {period: period, start: {$gte: from, $lt: to}}},
+			{
+				$group:
+				{
+					_id: null,
+					buckets: {$sum: 1},
+					campaigns: {$sum: "$campaigns"},
+					totalClicks: {$sum: "$totalClicks"},
+					totalViews: {$sum: "$totalViews"},
+					revenueNanos: {$sum: "$revenueNanos"}
+				}
+			},
+			{$addFields: {revenue: {$divide: ["$revenueNanos", 1000000000]}}}
+		])
+     /////////////////// END QUERY ///////////////////
+     *
+     * @param period DAY, WEEK or MONTH.
+     * @param from The first bucket start as yyyy-MM-dd, or null for no limit.
+     * @param to The bucket start to stop before, or null for no limit.
+     * @exception Exception Thrown if an error occurs when connecting with the db.
+     * @return DBObject The merged row, or null if no bucket is in the range.
+     */
+    public static DBObject getRollupTotal(String period, String from, String to) throws Exception {
+        DBCollection coll = _connect().getCollection(CAMPAIGN_ROLLUPS_COLLECTION);
+        List<DBObject> pipeline = new ArrayList<DBObject>();
+        pipeline.add(new BasicDBObject("$match", _rollupQuery(period, from, to)));
+
+        DBObject groupOptions = new BasicDBObject();
+        groupOptions.put("_id", null);
+        groupOptions.put("buckets", new BasicDBObject("$sum", 1));
+        for (String field : Arrays.asList("campaigns", "totalClicks", "totalViews", "revenueNanos")) {
+            groupOptions.put(field, new BasicDBObject("$sum", "$" + field));
+        }
+        pipeline.add(new BasicDBObject("$group", groupOptions));
+        pipeline.add(new BasicDBObject("$addFields", new BasicDBObject("revenue",
+                new BasicDBObject("$divide", Arrays.asList("$revenueNanos", NANOS_PER_DOLLAR)))));
+
+        Cursor cursor = coll.aggregate(pipeline, _cursorOptions());
+        try {
+            return cursor.hasNext() ? cursor.next() : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the start of the period's bucket that a campaign with the
+     * given startDate belongs to, computed the same way as the rollup
+     * pipeline of materializeRollups().
+     *
+     * @param period DAY, WEEK or MONTH.
+     * @param startDate The campaign startDate.
+     * @return String The bucket start as yyyy-MM-dd, or null if startDate
+     * does not start with a valid date.
+     */
+    public static String getRollupStart(String period, Object startDate) {
+        _checkRollupPeriod(period);
+        if (!(startDate instanceof String)
+                || !_START_DATE.matcher((String) startDate).find()) {
+            return null;
+        }
+        String day = ((String) startDate).substring(0, 10);
+        if (DAY.equals(period)) {
+            return day;
+        } else if (WEEK.equals(period)) {
+            return LocalDate.parse(day).with(DayOfWeek.MONDAY).toString();
+        }
+        return day.substring(0, 7) + "-01";
+    }
+
+    /**
+     * Builds the rollup pipeline described in materializeRollups(), without
+     * the $out stage.
+     *
+     * @return List The aggregation stages.
+     */
+    private static List<DBObject> _rollupPipeline() {
+        List<DBObject> pipeline = new ArrayList<DBObject>();
+
+        // 1 $match
+        pipeline.add(new BasicDBObject("$match", new BasicDBObject("startDate",
+                new BasicDBObject("$regex", _START_DATE_PATTERN))));
+
+        // 2 $addFields day and date
+        pipeline.add(new BasicDBObject("$addFields", new BasicDBObject("day",
+                new BasicDBObject("$substrBytes", Arrays.asList("$startDate", 0, 10)))));
+        pipeline.add(new BasicDBObject("$addFields", new BasicDBObject("date",
+                new BasicDBObject("$dateFromString", new BasicDBObject("dateString", "$day")))));
+
+        // 3 $project one bucket per period
+        // Monday of the week: date - (isoDayOfWeek - 1) days
+        DBObject daysIntoWeek = new BasicDBObject("$subtract", Arrays.asList(
+                new BasicDBObject("$isoDayOfWeek", "$date"), 1));
+        DBObject monday = new BasicDBObject("$subtract", Arrays.asList("$date",
+                new BasicDBObject("$multiply", Arrays.asList(daysIntoWeek, 86400000))));
+        DBObject week = new BasicDBObject("$dateToString",
+                new BasicDBObject("format", "%Y-%m-%d").append("date", monday));
+        DBObject month = new BasicDBObject("$concat", Arrays.asList(
+                new BasicDBObject("$substrBytes", Arrays.asList("$day", 0, 7)), "-01"));
+
+        DBObject projectMap = new BasicDBObject();
+        projectMap.put("totalClicks", 1);
+        projectMap.put("totalViews", 1);
+        projectMap.put("revenueNanos", 1);
+        projectMap.put("buckets", Arrays.asList(
+                new BasicDBObject("period", DAY).append("start", "$day"),
+                new BasicDBObject("period", WEEK).append("start", week),
+                new BasicDBObject("period", MONTH).append("start", month)));
+        pipeline.add(new BasicDBObject("$project", projectMap));
+
+        // 4 $unwind
+        pipeline.add(new BasicDBObject("$unwind", "$buckets"));
+
+        // 5 $group
+        DBObject groupOptions = new BasicDBObject();
+        groupOptions.put("_id", "$buckets");
+        groupOptions.put("campaigns", new BasicDBObject("$sum", 1));
+        groupOptions.put("totalClicks", new BasicDBObject("$sum", "$totalClicks"));
+        groupOptions.put("totalViews", new BasicDBObject("$sum", "$totalViews"));
+        groupOptions.put("revenueNanos", new BasicDBObject("$sum", "$revenueNanos"));
+        pipeline.add(new BasicDBObject("$group", groupOptions));
+
+        // 6 $project the bucket fields
+        DBObject rowMap = new BasicDBObject();
+        rowMap.put("_id", new BasicDBObject("$concat", Arrays.asList("$_id.period", ":", "$_id.start")));
+        rowMap.put("period", "$_id.period");
+        rowMap.put("start", "$_id.start");
+        rowMap.put("campaigns", 1);
+        rowMap.put("totalClicks", 1);
+        rowMap.put("totalViews", 1);
+        rowMap.put("revenueNanos", 1);
+        rowMap.put("revenue", new BasicDBObject("$divide", Arrays.asList("$revenueNanos", NANOS_PER_DOLLAR)));
+        pipeline.add(new BasicDBObject("$project", rowMap));
+
+        return pipeline;
+    }
+
+    /**
+     * Builds the query selecting the buckets of a period in [from, to).
+     */
+    private static DBObject _rollupQuery(String period, String from, String to) {
+        _checkRollupPeriod(period);
+        DBObject query = new BasicDBObject("period", period);
+        BasicDBObject range = new BasicDBObject();
+        if (from != null) {
+            range.append("$gte", from);
+        }
+        if (to != null) {
+            range.append("$lt", to);
+        }
+        if (!range.isEmpty()) {
+            query.put("start", range);
+        }
+        return query;
+    }
+
+    private static void _checkRollupPeriod(String period) {
+        if (!_ROLLUP_PERIODS.contains(period)) {
+            throw new IllegalArgumentException("Unknown rollup period: " + period);
+        }
+    }
+
+    /**
+     * Returns the precomputed row of CAMPAIGN_TOTALS_COLLECTION for one
+     * campaign.
+     *
+     * @param campaignId The campaign id.
+     * @exception Exception Thrown if an error occurs when connecting with the db.
+     * @return DBObject The row, or null if the campaign has no totals.
+     */
+    public static DBObject getCampaignTotal(Object campaignId) throws Exception {
+        DBCollection coll = _connect().getCollection(CAMPAIGN_TOTALS_COLLECTION);
+        return coll.findOne(new BasicDBObject("_id", campaignId));
+    }
+
+    /**
+     * Returns the n precomputed rows of CAMPAIGN_TOTALS_COLLECTION with the
+     * highest value of the field, highest first. Ties are broken by
+     * campaign id.
+     *
+     * @param field totalClicks, totalViews or revenueNanos.
+     * @param n The number of rows.
+     * @exception Exception Thrown if an error occurs when connecting with the db.
+     * @return Cursor A cursor to the first DBObject.
+     */
+    public static Cursor getTopCampaignTotals(String field, int n) throws Exception {
+        DBCollection coll = _connect().getCollection(CAMPAIGN_TOTALS_COLLECTION);
+        return coll.find().sort(new BasicDBObject(field, -1).append("_id", 1)).limit(n);
+    }
+
+    /**
+     * Returns the precomputed rows of CAMPAIGN_TOTALS_COLLECTION in campaign
+     * id order. The rows have the same fields as the ones returned by
+     * getTotalClicksAndViewsFromCampaigns().
+     *
+     * @exception Exception Thrown if an error occurs when connecting with the db.
+     * @return Cursor A cursor to the first DBObject.
+     */
+    public static Cursor getCampaignTotals() throws Exception {
+        DBCollection coll = _connect().getCollection(CAMPAIGN_TOTALS_COLLECTION);
+        return coll.find().sort(new BasicDBObject("_id", 1));
+    }
+
+    /**
+     * Returns every document of the collection as it is stored, in natural
+     * order. Used by Snapshot to dump the loaded data.
+     *
+     * @param collectionName The name of the mongoDB collection.
+     * @exception Exception Thrown if an error occurs when connecting with the db.
+     * @return Cursor A cursor to the first DBObject.
+     */
+    public static Cursor getDocuments(String collectionName) throws Exception {
+        DBCollection coll = _connect().getCollection(collectionName);
+        return coll.find().batchSize(BATCH_SIZE);
+    }
+
+    /**
+     * Returns the query plan of getTotalClicksAndViewsFromCampaigns() as
+     * reported by the aggregate explain command.
+     *
+     * @param strategy LOOKUP_FIRST or GROUP_FIRST.
+     * @exception Exception Thrown if an error occurs when connecting with the db.
+     * @return CommandResult The explain output.
+     */
+    public static CommandResult explainTotalClicksAndViewsFromCampaigns(String strategy) throws Exception {
+        DBCollection coll = _connect().getCollection(CREATIVES_COLLECTION);
+        return coll.explainAggregate(_totalsPipeline(strategy), _cursorOptions());
+    }
+
+    /**
+     * Runs both totals pipelines and checks that they return the same rows,
+     * printing any differences.
+     *
+     * @exception Exception Thrown if an error occurs when connecting with the db.
+     * @return boolean true if both pipelines return identical rows.
+     */
+    public static boolean compareTotalsStrategies() throws Exception {
+        Map<Object, DBObject> lookupFirst = _rowsById(getTotalClicksAndViewsFromCampaigns(LOOKUP_FIRST));
+        Map<Object, DBObject> groupFirst = _rowsById(getTotalClicksAndViewsFromCampaigns(GROUP_FIRST));
+
+        boolean identical = lookupFirst.size() == groupFirst.size();
+        if (!identical) {
+            System.out.println("Row counts differ: " + lookupFirst.size()
+                    + " vs " + groupFirst.size());
+        }
+        for (Map.Entry<Object, DBObject> entry : lookupFirst.entrySet()) {
+            DBObject other = groupFirst.get(entry.getKey());
+            for (String field : _TOTALS_FIELDS) {
+                Object expected = entry.getValue().get(field);
+                Object actual = other == null ? null : other.get(field);
+                if (other == null || (expected == null ? actual != null : !expected.equals(actual))) {
+                    System.out.println("Row " + entry.getKey() + " differs: " + entry.getValue()
+                            + " vs " + other);
+                    identical = false;
+                    break;
+                }
+            }
+        }
+        System.out.println("Totals strategies " + (identical ? "return identical rows" : "differ"));
+        return identical;
+    }
+
+    /**
+     * Returns the stages of the chosen totals pipeline.
+     */
+    private static List<DBObject> _totalsPipeline(String strategy) {
+        List<DBObject> pipeline;
+        if (LOOKUP_FIRST.equals(strategy)) {
+            pipeline = _lookupFirstPipeline();
+        } else if (GROUP_FIRST.equals(strategy)) {
+            pipeline = _groupFirstPipeline();
+        } else {
+            throw new IllegalArgumentException("Unknown totals strategy: " + strategy);
+        }
+
+        // revenueNanos = cpmMicros * totalViews
+        DBObject revenueNanos = new BasicDBObject("$multiply", Arrays.asList("$cpmMicros", "$totalViews"));
+        pipeline.add(new BasicDBObject("$addFields", new BasicDBObject("revenueNanos", revenueNanos)));
+
+        // revenue = revenueNanos / 1000000000
+        DBObject revenue = new BasicDBObject("$divide", Arrays.asList("$revenueNanos", NANOS_PER_DOLLAR));
+        pipeline.add(new BasicDBObject("$addFields", new BasicDBObject("revenue", revenue)));
+
+        return pipeline;
+    }
+
+    /**
+     * Builds the GROUP_FIRST pipeline described in
+     * getTotalClicksAndViewsFromCampaigns(String).
+     *
+     * @return List The aggregation stages.
+     */
+    private static List<DBObject> _groupFirstPipeline() {
+        List<DBObject> pipeline = new ArrayList<DBObject>();
+
+        // 1 $group
+        DBObject groupOptions = new BasicDBObject();
+        groupOptions.put("_id", "$parentId");
+        groupOptions.put("totalClicks", new BasicDBObject("$sum", "$clicks"));
+        groupOptions.put("totalViews", new BasicDBObject("$sum", "$views"));
+        pipeline.add(new BasicDBObject("$group", groupOptions));
+
+        // 2 $lookup
+        DBObject lookupOptions = new BasicDBObject();
+        lookupOptions.put("from", CAMPAIGNS_COLLECTION);
+        lookupOptions.put("localField", "_id");
+        lookupOptions.put("foreignField", "id");
+        lookupOptions.put("as", "fromCampaigns");
+        pipeline.add(new BasicDBObject("$lookup", lookupOptions));
+
+        // 3 $project
+        // Pull the campaign fields out of the (at most one element) array.
+        DBObject projectMap = new BasicDBObject();
+        for (String field : Arrays.asList("cpm", "cpmMicros", "name", "startDate")) {
+            projectMap.put(field, new BasicDBObject("$arrayElemAt",
+                    Arrays.asList("$fromCampaigns." + field, 0)));
+        }
+        projectMap.put("totalClicks", 1);
+        projectMap.put("totalViews", 1);
+        pipeline.add(new BasicDBObject("$project", projectMap));
+
+        return pipeline;
+    }
+
+    /**
+     * Reads every row of the cursor into a map keyed by _id.
+     */
+    private static Map<Object, DBObject> _rowsById(Cursor cursor) {
+        Map<Object, DBObject> rows = new HashMap<Object, DBObject>();
+        try {
+            while (cursor.hasNext()) {
+                DBObject row = cursor.next();
+                rows.put(row.get("_id"), row);
+            }
+        } finally {
+            cursor.close();
+        }
+        return rows;
+    }
+
+    /**
+     * Builds the pipeline described in getTotalClicksAndViewsFromCampaigns().
+     *
+     * @return List The aggregation stages.
      */
-    public static Cursor getTotalClicksAndViewsFromCampaigns() throws Exception {
-        DB db = _connect();
-        DBCollection coll = db.getCollection(CREATIVES_COLLECTION);
-        System.out.println("Performing aggregation query of" 
-              +  " campaigns and creatives...");
+    private static List<DBObject> _lookupFirstPipeline() {
         List<DBObject> pipeline = new ArrayList<DBObject>();
-        AggregationOptions options = AggregationOptions
-                                    .builder()
-                                    .outputMode(AggregationOptions
-                                                .OutputMode
-                                                .CURSOR)
-                                                .build();
 
         // 1 $lookup
         DBObject lookup = new BasicDBObject();
@@ -146,6 +1029,7 @@ public class Db {
         DBObject groupOptions = new BasicDBObject();
         groupOptions.put("_id", "$parentId");
         groupOptions.put("cpm", new BasicDBObject("$first", "$cpm"));
+        groupOptions.put("cpmMicros", new BasicDBObject("$first", "$cpmMicros"));
         groupOptions.put("name", new BasicDBObject("$first", "$name"));
         groupOptions.put("startDate", new BasicDBObject("$first", "$startDate"));
         groupOptions.put("totalClicks", new BasicDBObject("$sum", "$clicks"));
@@ -158,11 +1042,59 @@ public class Db {
         pipeline.add(project);
         pipeline.add(group);
 
-        Cursor cursor = coll.aggregate(pipeline, options);
+        return pipeline;
+    }
 
-        System.out.println("Aggregation Query Complete");
+    /**
+     * Aggregation options returning the results through a cursor, so the
+     * result set is not limited by the 16MB document size.
+     */
+    private static AggregationOptions _cursorOptions() {
+        return AggregationOptions
+               .builder()
+               .outputMode(AggregationOptions
+                           .OutputMode
+                           .CURSOR)
+                           .build();
+    }
 
-        return cursor;
+    /**
+     * Runs a pipeline on a collection of any database, returning a cursor.
+     * With getTotalsPipeline() and getRollupPipeline() this lets
+     * ShardedStorage run the same queries on each of its nodes.
+     *
+     * @param coll The collection to aggregate.
+     * @param pipeline The aggregation stages.
+     * @return Cursor A cursor to the first DBObject.
+     */
+    public static Cursor aggregate(DBCollection coll, List<DBObject> pipeline) {
+        return coll.aggregate(pipeline, _cursorOptions());
+    }
+
+    /**
+     * @return List The stages of the totals pipeline chosen with
+     * -Ddb.totalsStrategy, as run by getTotalClicksAndViewsFromCampaigns().
+     */
+    public static List<DBObject> getTotalsPipeline() {
+        return _totalsPipeline(_TOTALS_STRATEGY);
+    }
+
+    /**
+     * @return List The stages of the rollup pipeline of
+     * materializeRollups(), without the $out stage.
+     */
+    public static List<DBObject> getRollupPipeline() {
+        return _rollupPipeline();
+    }
+
+    /**
+     * @param period DAY, WEEK or MONTH.
+     * @param from The first bucket start as yyyy-MM-dd, or null for no limit.
+     * @param to The bucket start to stop before, or null for no limit.
+     * @return DBObject The query getRollups() runs on CAMPAIGN_ROLLUPS_COLLECTION.
+     */
+    public static DBObject getRollupQuery(String period, String from, String to) {
+        return _rollupQuery(period, from, to);
     }
 
     /**
@@ -170,15 +1102,12 @@ public class Db {
      * standard out.
      *
      * @param cursor The cursor pointing to a DBObject.
-     * @exception Exception Exception is thrown if error connection to
-     * database.
+     * @exception IOException Never thrown by the console, but part of the
+     * CampaignSink contract.
      * @return None
      */
-    public static void printFromCursor(Cursor cursor) {
-        while (cursor.hasNext()) {
-            DBObject obj = cursor.next();
-            System.out.println(obj);
-        }
+    public static void printFromCursor(Cursor cursor) throws IOException {
+        Client.outputCampaigns(cursor, new ConsoleSink());
     }
 
     /**
@@ -190,6 +1119,7 @@ public class Db {
         System.out.println("Dropping database: " + _DATABASE_NAME + "....");
         DB db = _connect();
         db.dropDatabase();
+        _wrote();
         System.out.println("Dropped database: " + _DATABASE_NAME);
     }
 
@@ -203,14 +1133,424 @@ public class Db {
      * @return None
      */
     public static void insertObjects(JSONArray data, String collectionName) throws Exception {
-        DB db = _connect();
-        DBCollection coll = db.getCollection(collectionName);
         System.out.println("Inserting " + data.size() + " objects...");
 
         List<DBObject> dbObjectList = _JSONArrayToDBObject(data);
-        WriteResult writeResult = coll.insert(dbObjectList);
+        bulkInsertObjects(dbObjectList, collectionName, BATCH_SIZE, WRITER_THREADS);
         System.out.println("Insertion complete");
-        _disconnect();
+    }
+
+    /**
+     * Inserts the documents into the specified collection using unordered
+     * bulk operations. The documents are split into batches of batchSize
+     * and up to writerThreads batches are written concurrently. Because the
+     * operations are unordered, a bad document only fails its own insert;
+     * the rest of its batch and all other batches are still written. The
+     * result of every batch is reported on standard out. The batches run on
+     * a thread pool shared by every call.
+     *
+     * @param objects The documents to insert.
+     * @param collectionName The name of the mongoDB collection.
+     * @param batchSize The maximum number of documents per bulk operation.
+     * @param writerThreads The number of batches written concurrently.
+     * @exception Exception Exception is thrown if error connection to
+     * database or a writer thread is interrupted.
+     * @return long The number of documents inserted.
+     */
+    public static long bulkInsertObjects(List<DBObject> objects, String collectionName,
+                                         int batchSize, int writerThreads) throws Exception {
+        if (batchSize <= 0 || writerThreads <= 0) {
+            throw new IllegalArgumentException("batchSize and writerThreads must be positive");
+        }
+        if (objects.isEmpty()) {
+            return 0;
+        }
+
+        final DBCollection coll = _connect().getCollection(collectionName);
+        int batchCount = (objects.size() + batchSize - 1) / batchSize;
+        ExecutorService writers = _writers();
+        // Batches in flight, oldest first. At most writerThreads are
+        // submitted before the oldest one is waited for.
+        Deque<Future<Integer>> pending = new ArrayDeque<Future<Integer>>(writerThreads);
+        long inserted = 0;
+
+        try {
+            for (int i = 0; i < batchCount; i++) {
+                if (pending.size() >= writerThreads) {
+                    inserted += pending.removeFirst().get();
+                }
+                final String label = "Batch " + (i + 1) + "/" + batchCount;
+                final List<DBObject> batch = objects.subList(i * batchSize,
+                        Math.min(objects.size(), (i + 1) * batchSize));
+                pending.addLast(writers.submit(new Callable<Integer>() {
+                    public Integer call() {
+                        return _insertBatch(coll, batch, label);
+                    }
+                }));
+            }
+            while (!pending.isEmpty()) {
+                inserted += pending.removeFirst().get();
+            }
+            System.out.println("Inserted " + inserted + " of " + objects.size()
+                    + " objects into " + collectionName);
+            return inserted;
+        } finally {
+            // Batches left after a failure are cancelled, not the pool.
+            for (Future<Integer> result : pending) {
+                result.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Inserts one batch of documents into the specified collection with a
+     * single unordered bulk operation on the calling thread. Used by callers
+     * such as IngestPipeline that manage their own writer threads.
+     *
+     * @param batch The documents to insert.
+     * @param collectionName The name of the mongoDB collection.
+     * @exception Exception Exception is thrown if error connection to
+     * database.
+     * @return int The number of documents inserted.
+     */
+    public static int insertBatch(List<DBObject> batch, String collectionName) throws Exception {
+        DBCollection coll = _connect().getCollection(collectionName);
+        return _insertBatch(coll, batch, collectionName + " batch");
+    }
+
+    /**
+     * Same as insertBatch() into a collection of any database.
+     *
+     * @param coll The collection, e.g. on one node of a ShardedStorage.
+     * @param batch The documents to insert.
+     * @return int The number of documents inserted.
+     */
+    public static int insertBatch(DBCollection coll, List<DBObject> batch) {
+        return _insertBatch(coll, batch, coll.getDB().getMongo().getAddress()
+                + " " + coll.getName() + " batch");
+    }
+
+    /**
+     * Converts a parsed JSON object into a mongo document.
+     *
+     * @param object A JSON object, as produced by json-simple.
+     * @return DBObject The equivalent mongo document.
+     */
+    public static DBObject toDBObject(JSONObject object) {
+        return _toDocument(object);
+    }
+
+    /**
+     * Writes one batch with an unordered bulk operation and reports how it
+     * went. Write errors for individual documents are printed rather than
+     * thrown so the other batches can carry on.
+     *
+     * @return int The number of documents inserted.
+     */
+    private static int _insertBatch(DBCollection coll, List<DBObject> batch, String label) {
+        BulkWriteOperation bulk = coll.initializeUnorderedBulkOperation();
+        for (DBObject object : batch) {
+            bulk.insert(object);
+        }
+
+        long start = Metrics.start();
+        try {
+            BulkWriteResult result = bulk.execute();
+            // Under an unacknowledged write concern there are no counts,
+            // and getInsertedCount() throws; count the batch as sent.
+            int inserted = result.isAcknowledged() ? result.getInsertedCount() : batch.size();
+            System.out.println(label + ": inserted " + inserted + " objects");
+            Metrics.count("db.inserted", inserted);
+            return inserted;
+        } catch (BulkWriteException e) {
+            BulkWriteResult result = e.getWriteResult();
+            int inserted = result.isAcknowledged() ? result.getInsertedCount()
+                    : batch.size() - e.getWriteErrors().size();
+            System.out.println(label + ": inserted " + inserted + " objects, "
+                    + e.getWriteErrors().size() + " failed");
+            for (BulkWriteError error : e.getWriteErrors()) {
+                System.out.println("    " + error.getMessage());
+            }
+            Metrics.count("db.inserted", inserted);
+            Metrics.count("db.insertErrors", e.getWriteErrors().size());
+            return inserted;
+        } finally {
+            Metrics.stop("db.insert", start);
+            _wrote();
+        }
+    }
+
+    /**
+     * Creates an ascending index on the fields of the collection if it does
+     * not already exist.
+     *
+     * @param collectionName The name of the mongoDB collection.
+     * @param fields The indexed fields, in order.
+     * @exception Exception Exception is thrown if error connection to
+     * database.
+     * @return None
+     */
+    public static void ensureIndex(String collectionName, String... fields) throws Exception {
+        DBObject keys = new BasicDBObject();
+        for (String field : fields) {
+            keys.put(field, 1);
+        }
+        _connect().getCollection(collectionName).createIndex(keys);
+    }
+
+    /**
+     * Creates every index declared in _INDEXES that does not exist yet.
+     * Building an index once over loaded data is much cheaper than
+     * maintaining it during a bulk load, so this should be called after the
+     * collections have been filled.
+     *
+     * @exception Exception Exception is thrown if error connection to
+     * database.
+     * @return None
+     */
+    public static void ensureIndexes() throws Exception {
+        ensureIndexes(_connect());
+    }
+
+    /**
+     * Same as ensureIndexes() on the given database.
+     *
+     * @param db The database, e.g. one node of a ShardedStorage.
+     * @return None
+     */
+    public static void ensureIndexes(DB db) {
+        for (String[] index : _INDEXES) {
+            DBObject keys = new BasicDBObject();
+            for (int i = 1; i < index.length; i++) {
+                keys.put(index[i], 1);
+            }
+            System.out.println("Ensuring index on " + index[0] + " " + keys.keySet());
+            db.getCollection(index[0]).createIndex(keys);
+        }
+    }
+
+    /**
+     * Checks that every index declared in _INDEXES is picked by the query
+     * planner. For each index an equality query on its leading field, the
+     * same lookup $lookup and $match perform, is explained and the winning
+     * plan is searched for an IXSCAN stage. The aggregate explain on its own
+     * does not show the plan of the $lookup's inner queries.
+     *
+     * @exception Exception Exception is thrown if error connection to
+     * database.
+     * @return boolean true if every declared index is used.
+     */
+    public static boolean verifyIndexes() throws Exception {
+        boolean allUsed = true;
+        for (String[] index : _INDEXES) {
+            DBCollection coll = _connect().getCollection(index[0]);
+            DBObject sample = coll.findOne(new BasicDBObject(index[1], new BasicDBObject("$exists", true)));
+            Object value = sample == null ? null : sample.get(index[1]);
+
+            DBObject explain = coll.find(new BasicDBObject(index[1], value)).explain();
+            DBObject queryPlanner = (DBObject) explain.get("queryPlanner");
+            boolean used = queryPlanner != null && _planUsesIndex(queryPlanner.get("winningPlan"));
+            System.out.println(index[0] + "." + index[1] + ": " + (used ? "IXSCAN" : "not used"));
+            allUsed &= used;
+        }
+        return allUsed;
+    }
+
+    /**
+     * Loads the content hash of every document in the collection, keyed by
+     * the values of keyFields. Only the key fields and the hash are read.
+     *
+     * @param collectionName The name of the mongoDB collection.
+     * @param keyFields The fields that identify a document.
+     * @exception Exception Exception is thrown if error connection to
+     * database.
+     * @return Map The content hash of each document, keyed by getKey().
+     */
+    public static Map<List<Object>, String> getContentHashes(String collectionName,
+                                                             String... keyFields) throws Exception {
+        DBCollection coll = _connect().getCollection(collectionName);
+        DBObject projection = new BasicDBObject("_id", 0).append(CONTENT_HASH_FIELD, 1);
+        for (String field : keyFields) {
+            projection.put(field, 1);
+        }
+
+        Map<List<Object>, String> hashes = new HashMap<List<Object>, String>();
+        DBCursor cursor = coll.find(new BasicDBObject(), projection);
+        try {
+            while (cursor.hasNext()) {
+                DBObject obj = cursor.next();
+                hashes.put(getKey(obj, keyFields), (String) obj.get(CONTENT_HASH_FIELD));
+            }
+        } finally {
+            cursor.close();
+        }
+        return hashes;
+    }
+
+    /**
+     * Returns the values of keyFields in the document, in order. Lists
+     * compare by value, so the result can be used as a map key.
+     *
+     * @param obj The document.
+     * @param keyFields The fields that identify a document.
+     * @return List The key values.
+     */
+    public static List<Object> getKey(DBObject obj, String... keyFields) {
+        List<Object> key = new ArrayList<Object>(keyFields.length);
+        for (String field : keyFields) {
+            key.add(obj.get(field));
+        }
+        return key;
+    }
+
+    /**
+     * Computes an MD5 hash of the document's content, ignoring _id and any
+     * previously stored hash. Keys are sorted first so the hash does not
+     * depend on field order.
+     *
+     * @param obj The document.
+     * @return String The hex encoded hash.
+     */
+    public static String getContentHash(DBObject obj) {
+        DBObject content = (DBObject) _canonicalize(obj);
+        content.removeField("_id");
+        content.removeField(CONTENT_HASH_FIELD);
+        return DigestUtils.md5Hex(JSON.serialize(content));
+    }
+
+    /**
+     * Inserts or replaces each document in the batch, matching existing
+     * documents on keyFields, with one unordered bulk operation. The content
+     * hash of each document is stored in CONTENT_HASH_FIELD, computing it if
+     * the caller has not already done so.
+     *
+     * @param batch The new or changed documents.
+     * @param collectionName The name of the mongoDB collection.
+     * @param keyFields The fields that identify a document.
+     * @exception Exception Exception is thrown if error connection to
+     * database, or BulkWriteException if any document could not be written,
+     * after the rest of the batch was.
+     * @return int The number of documents inserted or modified; the batch
+     * size if the write concern is unacknowledged.
+     */
+    public static int upsertBatch(List<DBObject> batch, String collectionName,
+                                  String... keyFields) throws Exception {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        DBCollection coll = _connect().getCollection(collectionName);
+        BulkWriteOperation bulk = coll.initializeUnorderedBulkOperation();
+        for (DBObject obj : batch) {
+            if (!obj.containsField(CONTENT_HASH_FIELD)) {
+                obj.put(CONTENT_HASH_FIELD, getContentHash(obj));
+            }
+            bulk.find(_keyQuery(getKey(obj, keyFields), keyFields)).upsert().replaceOne(obj);
+        }
+        long start = Metrics.start();
+        try {
+            BulkWriteResult result = bulk.execute();
+            // Under an unacknowledged write concern there are no counts;
+            // count the batch as sent.
+            if (!result.isAcknowledged()) {
+                System.out.println(collectionName + " batch: sent " + batch.size() + " objects");
+                Metrics.count("db.upserted", batch.size());
+                return batch.size();
+            }
+            int written = result.getUpserts().size() + result.getModifiedCount();
+            System.out.println(collectionName + " batch: upserted " + result.getUpserts().size()
+                    + ", modified " + result.getModifiedCount() + " objects");
+            Metrics.count("db.upserted", written);
+            return written;
+        } catch (BulkWriteException e) {
+            // Report what the rest of the batch wrote before failing the
+            // sync, so the checkpoint is not advanced past the bad documents.
+            BulkWriteResult result = e.getWriteResult();
+            int written = result.isAcknowledged()
+                    ? result.getUpserts().size() + result.getModifiedCount()
+                    : batch.size() - e.getWriteErrors().size();
+            System.out.println(collectionName + " batch: wrote " + written + " objects, "
+                    + e.getWriteErrors().size() + " failed");
+            for (BulkWriteError error : e.getWriteErrors()) {
+                System.out.println("    " + error.getMessage());
+            }
+            Metrics.count("db.upserted", written);
+            Metrics.count("db.upsertErrors", e.getWriteErrors().size());
+            throw e;
+        } finally {
+            Metrics.stop("db.upsert", start);
+            _wrote();
+        }
+    }
+
+    /**
+     * Removes the documents whose key values are listed.
+     *
+     * @param keys The key values of the documents to remove.
+     * @param collectionName The name of the mongoDB collection.
+     * @param keyFields The fields that identify a document.
+     * @exception Exception Exception is thrown if error connection to
+     * database.
+     * @return int The number of documents removed.
+     */
+    public static int deleteByKeys(Collection<List<Object>> keys, String collectionName,
+                                   String... keyFields) throws Exception {
+        if (keys.isEmpty()) {
+            return 0;
+        }
+        DBCollection coll = _connect().getCollection(collectionName);
+        BulkWriteOperation bulk = coll.initializeUnorderedBulkOperation();
+        for (List<Object> key : keys) {
+            bulk.find(_keyQuery(key, keyFields)).remove();
+        }
+        BulkWriteResult result = bulk.execute();
+        _wrote();
+        return result.isAcknowledged() ? result.getRemovedCount() : keys.size();
+    }
+
+    /**
+     * Records the outcome of a sync of the collection. The checkpoint is
+     * stored in SYNC_CHECKPOINTS_COLLECTION with the collection name as _id,
+     * replacing the previous one.
+     *
+     * @param collectionName The name of the synced collection.
+     * @param checkpoint The counters of the sync; a syncedAt date is added.
+     * @exception Exception Exception is thrown if error connection to
+     * database.
+     * @return None
+     */
+    public static void saveSyncCheckpoint(String collectionName, DBObject checkpoint) throws Exception {
+        DBCollection coll = _connect().getCollection(SYNC_CHECKPOINTS_COLLECTION);
+        checkpoint.put("_id", collectionName);
+        checkpoint.put("syncedAt", new Date());
+        coll.save(checkpoint);
+    }
+
+    /**
+     * Returns the last checkpoint saved for the collection.
+     *
+     * @param collectionName The name of the synced collection.
+     * @exception Exception Exception is thrown if error connection to
+     * database.
+     * @return DBObject The checkpoint, or null if it was never synced.
+     */
+    public static DBObject getSyncCheckpoint(String collectionName) throws Exception {
+        DBCollection coll = _connect().getCollection(SYNC_CHECKPOINTS_COLLECTION);
+        return coll.findOne(new BasicDBObject("_id", collectionName));
+    }
+
+    /**
+     * Returns a counter that increases after every write made through Db:
+     * inserts, upserts, deletes, dropping the database and rebuilding the
+     * totals or rollups. Writes made by other processes are not counted.
+     *
+     * @return long The current write generation.
+     */
+    public static long getWriteGeneration() {
+        return _writeGeneration.get();
+    }
+
+    private static void _wrote() {
+        _writeGeneration.incrementAndGet();
     }
 
     /**
@@ -232,18 +1572,17 @@ public class Db {
 
     /**
      * Converts a list of JSON objects to a mongo DBObject.
+     * Package-private so the benchmarks can time it without a database.
      *
      * @param array An array of JSON objects.
      * @return None
      */
-	private static List<DBObject> _JSONArrayToDBObject(JSONArray array) {
-		List<DBObject> list = new ArrayList<DBObject>();
+	static List<DBObject> _JSONArrayToDBObject(JSONArray array) {
+		List<DBObject> list = new ArrayList<DBObject>(array.size());
         System.out.println("Entering " + array.size() + " objects....");
 
 		for (int i = 0; i < array.size(); i++) {
-			String object = array.get(i).toString();
-			DBObject dbObject = (DBObject) JSON.parse(object);
-			list.add(dbObject);
+			list.add(_toDocument((Map<?, ?>) array.get(i)));
 		}
 
         System.out.println("Finished Inserting objects");
@@ -251,33 +1590,291 @@ public class Db {
 	}
 
     /**
-     * Connects to a mongoDB database with the specified hostname, port
-     * and database name.
+     * Converts a top level record into the document that is stored. On top
+     * of the fields of the record, a cpm string is parsed once here into
+     * CPM_MICROS_FIELD so the aggregation can do fixed-point revenue math.
+     *
+     * @param object A JSON object, as produced by json-simple.
+     * @return DBObject The document to store.
+     */
+    private static DBObject _toDocument(Map<?, ?> object) {
+        DBObject dbObject = _JSONObjectToDBObject(object);
+        Object cpm = dbObject.get("cpm");
+        if (cpm instanceof String) {
+            try {
+                dbObject.put(CPM_MICROS_FIELD, parseMicroDollars((String) cpm));
+            } catch (NumberFormatException e) {
+                // Keep the record; its revenue will just be missing.
+                System.out.println("Ignoring cpm of " + dbObject.get("id") + ": " + e.getMessage());
+            }
+        }
+        return dbObject;
+    }
+
+    /**
+     * Parses a dollar amount such as "$46.00", "46.5" or "$1,250.125" into
+     * an exact number of millionths of a dollar without allocating. A
+     * leading "$", commas separating the whole dollars into groups of three
+     * digits and up to 6 decimal places are accepted.
+     *
+     * @param amount The dollar amount.
+     * @exception NumberFormatException Thrown if the amount is malformed,
+     * has no digits at all (such as "$" or "."), has a comma anywhere but
+     * between groups of three digits (such as ",46" or "4,,6") or has more
+     * than 6 decimal places.
+     * @return long The amount in micro-dollars, e.g. 46000000.
+     */
+    public static long parseMicroDollars(CharSequence amount) {
+        int length = amount.length();
+        int i = 0;
+        boolean negative = false;
+        if (i < length && amount.charAt(i) == '-') {
+            negative = true;
+            i++;
+        }
+        if (i < length && amount.charAt(i) == '$') {
+            i++;
+        }
+
+        long whole = 0;
+        int wholeDigits = 0;
+        // Digits since the last thousands separator, and whether there was one.
+        int groupDigits = 0;
+        boolean grouped = false;
+        for (; i < length; i++) {
+            char c = amount.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (whole > (Long.MAX_VALUE / MICROS_PER_DOLLAR - 9) / 10) {
+                    throw new NumberFormatException("Amount too large: " + amount);
+                }
+                whole = whole * 10 + (c - '0');
+                wholeDigits++;
+                groupDigits++;
+            } else if (c == ',') {
+                // The first group has 1 to 3 digits, every later one 3.
+                if (groupDigits == 0 || groupDigits > 3 || (grouped && groupDigits != 3)) {
+                    throw new NumberFormatException("Misplaced thousands separator: " + amount);
+                }
+                grouped = true;
+                groupDigits = 0;
+            } else {
+                break;
+            }
+        }
+        if (grouped && groupDigits != 3) {
+            throw new NumberFormatException("Misplaced thousands separator: " + amount);
+        }
+
+        long fraction = 0;
+        int scale = MICROS_PER_DOLLAR;
+        int fractionDigits = 0;
+        if (i < length && amount.charAt(i) == '.') {
+            for (i++; i < length; i++) {
+                char c = amount.charAt(i);
+                if (c < '0' || c > '9') {
+                    break;
+                }
+                if (++fractionDigits > 6) {
+                    throw new NumberFormatException("More than 6 decimal places: " + amount);
+                }
+                scale /= 10;
+                fraction += (c - '0') * scale;
+            }
+        }
+
+        if (i != length || wholeDigits + fractionDigits == 0) {
+            throw new NumberFormatException("Not a dollar amount: " + amount);
+        }
+        long micros = whole * MICROS_PER_DOLLAR + fraction;
+        return negative ? -micros : micros;
+    }
+
+    /**
+     * Copies a parsed json-simple object straight into a BasicDBObject.
+     * This replaces the old toString()/JSON.parse round trip, which parsed
+     * every record twice. Nested objects and arrays are converted
+     * recursively and numbers are narrowed the same way JSON.parse did.
+     *
+     * @param object A JSON object, as produced by json-simple.
+     * @return DBObject The equivalent mongo document.
+     */
+    private static DBObject _JSONObjectToDBObject(Map<?, ?> object) {
+        BasicDBObject dbObject = new BasicDBObject(object.size());
+        for (Map.Entry<?, ?> entry : object.entrySet()) {
+            dbObject.put(entry.getKey().toString(), _JSONValueToBSON(entry.getValue()));
+        }
+        return dbObject;
+    }
+
+    /**
+     * Converts a single json-simple value to the type the mongo driver
+     * should store. json-simple parses every integer as a Long, whereas
+     * JSON.parse returned an Integer when the value fits, so we narrow here
+     * to keep the stored BSON types (and the $sum results built on them)
+     * unchanged.
+     *
+     * @param value A value from a json-simple object or array.
+     * @return Object The value to store in a DBObject.
+     */
+    private static Object _JSONValueToBSON(Object value) {
+        if (value instanceof Map) {
+            return _JSONObjectToDBObject((Map<?, ?>) value);
+        }
+        if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            BasicDBList dbList = new BasicDBList();
+            for (Object element : list) {
+                dbList.add(_JSONValueToBSON(element));
+            }
+            return dbList;
+        }
+        if (value instanceof Long) {
+            long l = (Long) value;
+            if (l >= Integer.MIN_VALUE && l <= Integer.MAX_VALUE) {
+                return (int) l;
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Searches an explain plan tree for an index scan stage.
+     */
+    private static boolean _planUsesIndex(Object plan) {
+        if (plan instanceof BasicDBList) {
+            for (Object stage : (BasicDBList) plan) {
+                if (_planUsesIndex(stage)) {
+                    return true;
+                }
+            }
+        } else if (plan instanceof DBObject) {
+            DBObject stage = (DBObject) plan;
+            if ("IXSCAN".equals(stage.get("stage"))) {
+                return true;
+            }
+            for (String key : stage.keySet()) {
+                if (_planUsesIndex(stage.get(key))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Builds a query matching the document with the given key values.
+     */
+    private static DBObject _keyQuery(List<Object> key, String... keyFields) {
+        DBObject query = new BasicDBObject();
+        for (int i = 0; i < keyFields.length; i++) {
+            query.put(keyFields[i], key.get(i));
+        }
+        return query;
+    }
+
+    /**
+     * Returns a copy of the value with the keys of every object sorted.
+     */
+    private static Object _canonicalize(Object value) {
+        if (value instanceof BasicDBList) {
+            BasicDBList list = new BasicDBList();
+            for (Object element : (BasicDBList) value) {
+                list.add(_canonicalize(element));
+            }
+            return list;
+        }
+        if (value instanceof DBObject) {
+            DBObject obj = (DBObject) value;
+            Map<String, Object> sorted = new TreeMap<String, Object>();
+            for (String key : obj.keySet()) {
+                sorted.put(key, _canonicalize(obj.get(key)));
+            }
+            return new BasicDBObject(sorted);
+        }
+        return value;
+    }
+
+    /**
+     * Closes the shared mongo client and its connection pool, and stops the
+     * shared writer threads. The next operation will create them again.
      *
-     * @exception Exception Exception is thrown if error connection to
-     * database.
      * @return None
      */
-	private static DB _connect() throws Exception {
-        System.out.println("Connecting to " + _DATABASE_NAME + "...");
-        MongoClient mongoClient = new MongoClient(_HOST_NAME , _PORT);
-        DB db = mongoClient.getDB(_DATABASE_NAME);
-        System.out.println("Connected to " + _DATABASE_NAME);
-		return db;
-	}
+    public static synchronized void close() {
+        if (_writerPool != null) {
+            _writerPool.shutdownNow();
+            _writerPool = null;
+        }
+        if (_mongoClient != null) {
+            _mongoClient.close();
+            _mongoClient = null;
+            System.out.println("Disconnected from " + _DATABASE_NAME);
+        }
+    }
+
+    /**
+     * Returns the pool that writes the batches of bulkInsertObjects(),
+     * creating it on the first call. Idle threads exit after a minute.
+     *
+     * @return ExecutorService The shared writer pool.
+     */
+    private static synchronized ExecutorService _writers() {
+        if (_writerPool == null) {
+            _writerPool = Executors.newCachedThreadPool();
+        }
+        return _writerPool;
+    }
 
     /**
-     * Disconnects to a mongoDB database with the specified hostname, port
-     * and database name.
+     * Returns the database specified by the hostname, port and database
+     * name. The underlying MongoClient is created on the first call and
+     * reused afterwards, so every operation shares one warm connection
+     * pool.
      *
-     * @exception Exception Exception is thrown if error disconnecting to
+     * @exception Exception Exception is thrown if error connection to
      * database.
-     * @return None
+     * @return DB The database handle.
      */
-	private static DB _disconnect() throws Exception {
-		MongoClient mongoClient = new MongoClient(_HOST_NAME , _PORT);
-        DB db = mongoClient.getDB(_DATABASE_NAME);
-        System.out.println("Disconnected from " + _DATABASE_NAME);
-        return db;
+	private static synchronized DB _connect() throws Exception {
+        if (_mongoClient == null) {
+            System.out.println("Connecting to " + _DATABASE_NAME + "...");
+            _mongoClient = newClient(new ServerAddress(_HOST_NAME, _PORT));
+            System.out.println("Connected to " + _DATABASE_NAME);
+        }
+		return _mongoClient.getDB(_DATABASE_NAME);
 	}
+
+    /**
+     * Creates a client for the server with the pool, timeout, write concern
+     * and read preference settings of the shared client. The caller owns
+     * the client and must close it.
+     *
+     * @param address The server.
+     * @exception Exception Exception is thrown if the settings are invalid.
+     * @return MongoClient The new client.
+     */
+    public static MongoClient newClient(ServerAddress address) throws Exception {
+        WriteConcern writeConcern = WriteConcern.valueOf(_WRITE_CONCERN);
+        if (writeConcern == null) {
+            throw new IllegalArgumentException("Unknown write concern: " + _WRITE_CONCERN);
+        }
+        MongoClientOptions options = MongoClientOptions
+                                    .builder()
+                                    .connectionsPerHost(_CONNECTIONS_PER_HOST)
+                                    .connectTimeout(_CONNECT_TIMEOUT_MS)
+                                    .socketTimeout(_SOCKET_TIMEOUT_MS)
+                                    .maxWaitTime(_MAX_WAIT_TIME_MS)
+                                    .writeConcern(writeConcern)
+                                    .readPreference(ReadPreference.valueOf(_READ_PREFERENCE))
+                                    .build();
+        return new MongoClient(address, options);
+    }
+
+    /**
+     * @param client A client from newClient().
+     * @return DB The database named by -Ddb.name on the client's server.
+     */
+    public static DB getDatabase(MongoClient client) {
+        return client.getDB(_DATABASE_NAME);
+    }
 }
@@ -0,0 +1,196 @@
+/**
+ * Loads the campaigns and creatives endpoints into a Storage (mongoDB
+ * unless another one is given) concurrently.
+ * Each endpoint runs as a pipeline of stages connected by bounded queues:
+ *
+ * 1. HTTP read:  copies the response body into chunks (ReadAheadInputStream).
+ * 2. Parse:      tokenizes the chunks into JSON objects.
+ * 3. Convert:    turns JSON objects into DBObjects and groups them in batches.
+ * 4. Write:      Db.WRITER_THREADS workers insert the batches into the Storage.
+ *
+ * Every stage runs on its own thread, so network, CPU and database time
+ * overlap and the total time approaches that of the slowest stage. The
+ * bounded queues keep memory use proportional to the queue capacity.
+ *
+ * Filename: IngestPipeline.java
+ * @author: David Wang
+ *
+ */
+
+import com.mongodb.DBObject;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.simple.JSONObject;
+
+public class IngestPipeline {
+
+    // Capacity of each queue between stages. The chunk and record queues
+    // are scaled from this so every stage has some slack.
+    private static final int _QUEUE_CAPACITY = Integer.getInteger("ingest.queueCapacity", 8);
+    private static final int _CHUNK_SIZE = 64 * 1024;
+
+    // End of stream markers, compared by identity.
+    private static final JSONObject _END_OF_RECORDS = new JSONObject();
+    private static final List<DBObject> _END_OF_BATCHES = new ArrayList<DBObject>();
+
+    private final Storage _storage;
+    private final String _collectionName;
+    private final Callable<InputStream> _source;
+    private final BlockingQueue<JSONObject> _records;
+    private final BlockingQueue<List<DBObject>> _batches;
+    private final AtomicLong _inserted = new AtomicLong();
+
+    private IngestPipeline(Storage storage, String collectionName, Callable<InputStream> source) {
+        _storage = storage;
+        _collectionName = collectionName;
+        _source = source;
+        _records = new ArrayBlockingQueue<JSONObject>(_QUEUE_CAPACITY * Db.BATCH_SIZE);
+        _batches = new ArrayBlockingQueue<List<DBObject>>(_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Fetches both endpoints and inserts them into their collections,
+     * running both pipelines at the same time. If any stage fails, all
+     * other stages are cancelled and the failure is rethrown.
+     *
+     * @exception Exception thrown if any stage fails.
+     * @return None
+     */
+    public static void ingestAll() throws Exception {
+        ingestAll(new MongoStorage());
+    }
+
+    /**
+     * Same as ingestAll() but inserting into the given storage.
+     *
+     * @param storage Where the campaigns and creatives are inserted.
+     * @exception Exception thrown if any stage fails.
+     * @return None
+     */
+    public static void ingestAll(Storage storage) throws Exception {
+        List<IngestPipeline> pipelines = new ArrayList<IngestPipeline>();
+        pipelines.add(new IngestPipeline(storage, Db.CREATIVES_COLLECTION, new Callable<InputStream>() {
+            public InputStream call() throws Exception {
+                return Client.openCreativesStream();
+            }
+        }));
+        pipelines.add(new IngestPipeline(storage, Db.CAMPAIGNS_COLLECTION, new Callable<InputStream>() {
+            public InputStream call() throws Exception {
+                return Client.openCampaignsStream();
+            }
+        }));
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        CompletionService<Object> stages = new ExecutorCompletionService<Object>(executor);
+        try {
+            int running = 0;
+            for (IngestPipeline pipeline : pipelines) {
+                running += pipeline._start(stages);
+            }
+
+            // Wait for every stage, failing fast on the first error.
+            for (; running > 0; running--) {
+                stages.take().get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        for (IngestPipeline pipeline : pipelines) {
+            System.out.println("Inserted " + pipeline._inserted.get()
+                    + " objects into " + pipeline._collectionName);
+        }
+    }
+
+    /**
+     * Submits every stage of this pipeline.
+     *
+     * @return int The number of tasks submitted.
+     */
+    private int _start(CompletionService<Object> stages) throws Exception {
+        final ReadAheadInputStream body = new ReadAheadInputStream(_source.call(),
+                _CHUNK_SIZE, _QUEUE_CAPACITY);
+        int submitted = 0;
+
+        // 1. HTTP read
+        stages.submit(_asTask(body.reader()));
+        submitted++;
+
+        // 2. Parse
+        stages.submit(new Callable<Object>() {
+            public Object call() throws Exception {
+                try {
+                    Client.streamJSONArray(body, new JSONRecordHandler() {
+                        public void onRecord(JSONObject record) throws Exception {
+                            _records.put(record);
+                        }
+                    });
+                } finally {
+                    _records.put(_END_OF_RECORDS);
+                }
+                return null;
+            }
+        });
+        submitted++;
+
+        // 3. Convert
+        stages.submit(new Callable<Object>() {
+            public Object call() throws Exception {
+                try {
+                    List<DBObject> batch = new ArrayList<DBObject>(Db.BATCH_SIZE);
+                    JSONObject record;
+                    while ((record = _records.take()) != _END_OF_RECORDS) {
+                        batch.add(Db.toDBObject(record));
+                        if (batch.size() == Db.BATCH_SIZE) {
+                            _batches.put(batch);
+                            batch = new ArrayList<DBObject>(Db.BATCH_SIZE);
+                        }
+                    }
+                    if (!batch.isEmpty()) {
+                        _batches.put(batch);
+                    }
+                } finally {
+                    for (int i = 0; i < Db.WRITER_THREADS; i++) {
+                        _batches.put(_END_OF_BATCHES);
+                    }
+                }
+                return null;
+            }
+        });
+        submitted++;
+
+        // 4. Write
+        for (int i = 0; i < Db.WRITER_THREADS; i++) {
+            stages.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    List<DBObject> batch;
+                    while ((batch = _batches.take()) != _END_OF_BATCHES) {
+                        _inserted.addAndGet(_storage.insertBatch(batch, _collectionName));
+                    }
+                    return null;
+                }
+            });
+            submitted++;
+        }
+        return submitted;
+    }
+
+    private static Callable<Object> _asTask(final Callable<?> callable) {
+        return new Callable<Object>() {
+            public Object call() throws Exception {
+                return callable.call();
+            }
+        };
+    }
+}
@@ -0,0 +1,154 @@
+/**
+ * A json-simple ContentHandler that incrementally builds each element of a
+ * top level JSON array and passes it to a JSONRecordHandler. Only the record
+ * currently being parsed is kept in memory.
+ *
+ * Filename: JSONArrayStreamer.java
+ * @author: David Wang
+ *
+ */
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+public class JSONArrayStreamer implements ContentHandler {
+
+    private final JSONRecordHandler _handler;
+
+    // Containers that are still open. The bottom of the stack is the top
+    // level array, which is never materialized.
+    private final Deque<Object> _stack = new ArrayDeque<Object>();
+    private final Deque<String> _keys = new ArrayDeque<String>();
+    private int _depth = 0;
+    private long _count = 0;
+
+    public JSONArrayStreamer(JSONRecordHandler handler) {
+        _handler = handler;
+    }
+
+    /**
+     * Parses the JSON array from the reader and calls the handler once per
+     * element. The reader is not closed.
+     *
+     * @param reader The reader positioned at the start of a JSON array.
+     * @param handler The handler that receives every record.
+     * @exception Exception An exception is thrown if the JSON is malformed or
+     * the handler fails.
+     * @return long The number of records passed to the handler.
+     */
+    public static long stream(Reader reader, JSONRecordHandler handler) throws Exception {
+        JSONArrayStreamer streamer = new JSONArrayStreamer(handler);
+        JSONParser parser = new JSONParser();
+        try {
+            parser.parse(reader, streamer);
+        } catch (HandlerException e) {
+            throw e.getCause();
+        }
+        return streamer._count;
+    }
+
+    public void startJSON() {
+    }
+
+    public void endJSON() {
+    }
+
+    public boolean startObject() throws ParseException {
+        if (_depth == 0) {
+            throw new ParseException(ParseException.ERROR_UNEXPECTED_TOKEN, "Expected a JSON array");
+        }
+        _depth++;
+        _stack.push(new JSONObject());
+        return true;
+    }
+
+    public boolean endObject() throws IOException {
+        _depth--;
+        _endValue(_stack.pop());
+        return true;
+    }
+
+    public boolean startObjectEntry(String key) {
+        _keys.push(key);
+        return true;
+    }
+
+    public boolean endObjectEntry() {
+        _keys.pop();
+        return true;
+    }
+
+    public boolean startArray() {
+        _depth++;
+        // The top level array is only a delimiter for the records.
+        if (_depth > 1) {
+            _stack.push(new JSONArray());
+        }
+        return true;
+    }
+
+    public boolean endArray() throws IOException {
+        _depth--;
+        if (_depth > 0) {
+            _endValue(_stack.pop());
+        }
+        return true;
+    }
+
+    public boolean primitive(Object value) throws IOException {
+        _endValue(value);
+        return true;
+    }
+
+    /**
+     * Attaches a completed value to its parent container, or hands it to the
+     * handler if it is an element of the top level array.
+     */
+    @SuppressWarnings("unchecked")
+    private void _endValue(Object value) throws IOException {
+        if (_stack.isEmpty()) {
+            if (!(value instanceof JSONObject)) {
+                throw new IOException("Expected a JSON object but found: " + value);
+            }
+            _count++;
+            try {
+                _handler.onRecord((JSONObject) value);
+            } catch (Exception e) {
+                throw new HandlerException(e);
+            }
+            return;
+        }
+
+        Object parent = _stack.peek();
+        if (parent instanceof JSONObject) {
+            ((JSONObject) parent).put(_keys.peek(), value);
+        } else {
+            ((JSONArray) parent).add(value);
+        }
+    }
+
+    /**
+     * Carries an exception thrown by the handler through the parser, which
+     * only allows IOException and ParseException to escape.
+     */
+    private static class HandlerException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        HandlerException(Exception cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized Exception getCause() {
+            return (Exception) super.getCause();
+        }
+    }
+}
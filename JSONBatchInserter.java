@@ -0,0 +1,75 @@
+/**
+ * A JSONRecordHandler that collects streamed records into fixed size batches
+ * and inserts each batch into a collection of a Storage, mongoDB unless
+ * another one is given. Memory use is bounded by the batch size instead of
+ * the size of the HTTP response.
+ *
+ * Filename: JSONBatchInserter.java
+ * @author: David Wang
+ *
+ */
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+public class JSONBatchInserter implements JSONRecordHandler {
+
+    // Large enough to give every Db writer thread a full batch.
+    public static final int DEFAULT_BATCH_SIZE = Db.BATCH_SIZE * Db.WRITER_THREADS;
+
+    private final Storage _storage;
+    private final String _collectionName;
+    private final int _batchSize;
+    private JSONArray _batch;
+    private long _inserted = 0;
+
+    public JSONBatchInserter(String collectionName) {
+        this(new MongoStorage(), collectionName, DEFAULT_BATCH_SIZE);
+    }
+
+    public JSONBatchInserter(Storage storage, String collectionName) {
+        this(storage, collectionName, DEFAULT_BATCH_SIZE);
+    }
+
+    public JSONBatchInserter(Storage storage, String collectionName, int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+        }
+        _storage = storage;
+        _collectionName = collectionName;
+        _batchSize = batchSize;
+        _batch = new JSONArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    public void onRecord(JSONObject record) throws Exception {
+        _batch.add(record);
+        if (_batch.size() >= _batchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Inserts any buffered records. Must be called once the stream has
+     * ended so the last partial batch is written.
+     *
+     * @exception Exception Exception is thrown if error connection to
+     * database.
+     * @return None
+     */
+    public void flush() throws Exception {
+        if (_batch.isEmpty()) {
+            return;
+        }
+        _storage.insertObjects(Db._JSONArrayToDBObject(_batch), _collectionName);
+        _inserted += _batch.size();
+        _batch = new JSONArray();
+    }
+
+    /**
+     * @return long The number of records inserted so far.
+     */
+    public long getInsertedCount() {
+        return _inserted;
+    }
+}
@@ -0,0 +1,24 @@
+/**
+ * Callback used by the streaming JSON readers in Client. Each element of the
+ * top level JSON array is handed to onRecord as soon as it has been parsed,
+ * so the caller never has to hold the whole response in memory.
+ *
+ * Filename: JSONRecordHandler.java
+ * @author: David Wang
+ *
+ */
+
+import org.json.simple.JSONObject;
+
+public interface JSONRecordHandler {
+
+    /**
+     * Called once for every object in the top level JSON array, in the order
+     * they appear in the response.
+     *
+     * @param record The parsed JSON object.
+     * @exception Exception Any exception thrown aborts the stream.
+     * @return None
+     */
+    void onRecord(JSONObject record) throws Exception;
+}
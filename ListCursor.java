@@ -0,0 +1,47 @@
+/**
+ * A Cursor over an in-memory list of rows, used for the MemoryStorage
+ * totals and to benchmark the exporters without a database.
+ *
+ * Filename: ListCursor.java
+ * @author: David Wang
+ *
+ */
+
+import com.mongodb.Cursor;
+import com.mongodb.DBObject;
+import com.mongodb.ServerAddress;
+
+import java.util.Iterator;
+import java.util.List;
+
+public class ListCursor implements Cursor {
+
+    private final Iterator<DBObject> _rows;
+
+    public ListCursor(List<DBObject> rows) {
+        _rows = rows.iterator();
+    }
+
+    public boolean hasNext() {
+        return _rows.hasNext();
+    }
+
+    public DBObject next() {
+        return _rows.next();
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    public long getCursorId() {
+        return 0;
+    }
+
+    public ServerAddress getServerAddress() {
+        return null;
+    }
+
+    public void close() {
+    }
+}
@@ -0,0 +1,223 @@
+/**
+ * An embedded stand-in for the Ad-Juster API. It serves generated
+ * /api/campaigns and /api/creatives payloads from DataGenerator, so the
+ * whole run can be load tested offline against a local mongod:
+ *
+ *   $ java -cp .:lib/* -Dserver.campaigns=100000 -Dserver.fanOut=50 LocalApiServer
+ *   $ java -cp .:lib/* -Dapi.baseUrl=http://localhost:8080 Problem
+ *
+ * Options (system properties):
+ *   server.port            port to listen on (8080, 0 picks a free one)
+ *   server.campaigns       number of campaigns (1000)
+ *   server.fanOut          creatives per campaign (10)
+ *   server.seed            generator seed (DataGenerator.DEFAULT_SEED)
+ *   server.latencyMs       delay before each response starts (0)
+ *   server.bytesPerSecond  throughput limit per response, 0 for none (0)
+ *   server.chunked         stream with chunked encoding instead of sending
+ *                          a Content-Length (true)
+ *
+ * With chunked encoding the payload is generated while it is sent, so any
+ * size can be served in constant memory. Otherwise each payload is
+ * generated once and kept in memory to know its length.
+ *
+ * The payloads only depend on the generator settings, which also make up
+ * their ETag. A request whose If-None-Match carries it gets 304 Not
+ * Modified, so conditional requests can be tested too.
+ *
+ * Filename: LocalApiServer.java
+ * @author: David Wang
+ *
+ */
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class LocalApiServer {
+
+    private final HttpServer _server;
+    private final ExecutorService _executor;
+    private final DataGenerator _generator;
+    private final long _latencyMs;
+    private final long _bytesPerSecond;
+    private final boolean _chunked;
+    private final String _etag;
+    private byte[] _campaigns;
+    private byte[] _creatives;
+
+    /**
+     * @param port The port to listen on; 0 picks a free port.
+     * @param generator The source of the payloads.
+     * @param latencyMs The delay before each response starts.
+     * @param bytesPerSecond The throughput limit per response; 0 for none.
+     * @param chunked Whether to use chunked transfer encoding.
+     * @exception IOException An exception is thrown if the port cannot be
+     * bound.
+     */
+    public LocalApiServer(int port, DataGenerator generator, long latencyMs,
+                          long bytesPerSecond, boolean chunked) throws IOException {
+        _generator = generator;
+        _latencyMs = latencyMs;
+        _bytesPerSecond = bytesPerSecond;
+        _chunked = chunked;
+        _etag = "\"" + generator.getCampaignCount() + "-" + generator.getCreativeCount()
+                + "-" + generator.getSeed() + "\"";
+
+        _server = HttpServer.create(new InetSocketAddress(port), 0);
+        _executor = Executors.newCachedThreadPool();
+        _server.setExecutor(_executor);
+        _server.createContext("/api/campaigns", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                _respond(exchange, false);
+            }
+        });
+        _server.createContext("/api/creatives", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                _respond(exchange, true);
+            }
+        });
+    }
+
+    public void start() {
+        _server.start();
+        System.out.println("Serving " + _generator.getCampaignCount() + " campaigns and "
+                + _generator.getCreativeCount() + " creatives at " + getBaseUrl());
+    }
+
+    public void stop() {
+        _server.stop(0);
+        _executor.shutdownNow();
+    }
+
+    /**
+     * @return String The url to pass as -Dapi.baseUrl.
+     */
+    public String getBaseUrl() {
+        return "http://localhost:" + _server.getAddress().getPort();
+    }
+
+    private void _respond(HttpExchange exchange, boolean creatives) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            if (_latencyMs > 0) {
+                Thread.sleep(_latencyMs);
+            }
+            exchange.getResponseHeaders().set("ETag", _etag);
+            if (_etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.sendResponseHeaders(304, -1);
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+
+            if (_chunked) {
+                exchange.sendResponseHeaders(200, 0);
+                Writer out = new OutputStreamWriter(_throttle(exchange.getResponseBody()),
+                                                    StandardCharsets.UTF_8);
+                if (creatives) {
+                    _generator.writeCreatives(out);
+                } else {
+                    _generator.writeCampaigns(out);
+                }
+            } else {
+                byte[] body = creatives ? _creativesJSON() : _campaignsJSON();
+                exchange.sendResponseHeaders(200, body.length);
+                _throttle(exchange.getResponseBody()).write(body);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private synchronized byte[] _campaignsJSON() throws IOException {
+        if (_campaigns == null) {
+            _campaigns = _generator.campaignsJSON();
+        }
+        return _campaigns;
+    }
+
+    private synchronized byte[] _creativesJSON() throws IOException {
+        if (_creatives == null) {
+            _creatives = _generator.creativesJSON();
+        }
+        return _creatives;
+    }
+
+    private OutputStream _throttle(OutputStream out) {
+        return _bytesPerSecond > 0 ? new ThrottledOutputStream(out, _bytesPerSecond) : out;
+    }
+
+    /**
+     * Limits the average rate at which bytes are written by sleeping
+     * whenever the writer gets ahead of the allowed rate.
+     */
+    private static class ThrottledOutputStream extends FilterOutputStream {
+
+        private static final int _SLICE = 8192;
+
+        private final long _bytesPerSecond;
+        private final long _start = System.nanoTime();
+        private long _written = 0;
+
+        ThrottledOutputStream(OutputStream out, long bytesPerSecond) {
+            super(out);
+            _bytesPerSecond = bytesPerSecond;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, _SLICE);
+                out.write(b, off, n);
+                off += n;
+                len -= n;
+                _written += n;
+                _pace();
+            }
+        }
+
+        private void _pace() throws IOException {
+            long dueNanos = _written * 1000000000L / _bytesPerSecond;
+            long aheadMillis = (dueNanos - (System.nanoTime() - _start)) / 1000000;
+            if (aheadMillis > 0) {
+                try {
+                    Thread.sleep(aheadMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while throttling", e);
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        DataGenerator generator = new DataGenerator(Integer.getInteger("server.campaigns", 1000),
+                                                    Integer.getInteger("server.fanOut", 10),
+                                                    Long.getLong("server.seed", DataGenerator.DEFAULT_SEED));
+        LocalApiServer server = new LocalApiServer(Integer.getInteger("server.port", 8080),
+                                                   generator,
+                                                   Long.getLong("server.latencyMs", 0L),
+                                                   Long.getLong("server.bytesPerSecond", 0L),
+                                                   Boolean.parseBoolean(System.getProperty("server.chunked", "true")));
+        server.start();
+    }
+}
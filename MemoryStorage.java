@@ -0,0 +1,446 @@
+/**
+ * A Storage that computes the campaign totals in-process, for batch runs
+ * that have no use for a database. Select it with
+ * -Dstorage.backend=memory.
+ *
+ * Creatives are not kept. As each one is inserted its clicks and views are
+ * added to the running totals of its parentId, held as parallel arrays
+ * (struct of arrays) indexed through a LongIntHashMap. Campaigns keep only
+ * the fields of a totals row in the same way. Memory therefore grows with
+ * the number of campaigns, not creatives: tens of millions of creatives
+ * cost one row of a few arrays per campaign instead of a DBObject each.
+ *
+ * The totals hash-join the summed creatives to the campaigns, which returns
+ * the same rows as the GROUP_FIRST pipeline of
+ * Db.getTotalClicksAndViewsFromCampaigns():
+ *
+ * - creatives are grouped by parentId, a missing parentId grouping under a
+ *   null _id;
+ * - the first campaign inserted with a given id supplies cpm, cpmMicros,
+ *   name and startDate, which are left out if there is none;
+ * - totalClicks and totalViews are Integers when they fit, Longs otherwise;
+ * - revenueNanos is a Long and revenue a Double, both null without
+ *   cpmMicros.
+ *
+ * Ids must be integral numbers; clicks and views that are not numbers are
+ * skipped like $sum does.
+ *
+ * Filename: MemoryStorage.java
+ * @author: David Wang
+ *
+ */
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.Cursor;
+import com.mongodb.DBObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class MemoryStorage implements Storage {
+
+    private static final int _INITIAL_CAPACITY = 1024;
+
+    // Stored in place of the cpmMicros of a campaign that has none.
+    private static final long _NO_CPM_MICROS = Long.MIN_VALUE;
+
+    // Campaigns by id. The slot of the campaign without an id is kept apart
+    // since it has no long key.
+    private LongIntHashMap _campaignSlots;
+    private int _nullCampaignSlot;
+    private Object[] _cpm;
+    private long[] _cpmMicros;
+    private Object[] _name;
+    private Object[] _startDate;
+    private int _campaignCount;
+    private long _campaignDocuments;
+
+    // Summed creatives by parentId.
+    private LongIntHashMap _parentSlots;
+    private int _nullParentSlot;
+    private long[] _parentIds;
+    private long[] _clicks;
+    private long[] _views;
+    private int _parentCount;
+    private long _creativeDocuments;
+
+    private List<DBObject> _totals;
+    // Index of each row of _totals by campaign id.
+    private LongIntHashMap _totalsIndex;
+
+    private final AtomicLong _writeGeneration = new AtomicLong();
+
+    public MemoryStorage() {
+        clear();
+    }
+
+    public boolean isPersistent() {
+        return false;
+    }
+
+    public synchronized void clear() {
+        _campaignSlots = new LongIntHashMap(_INITIAL_CAPACITY);
+        _nullCampaignSlot = LongIntHashMap.MISSING;
+        _cpm = new Object[_INITIAL_CAPACITY];
+        _cpmMicros = new long[_INITIAL_CAPACITY];
+        _name = new Object[_INITIAL_CAPACITY];
+        _startDate = new Object[_INITIAL_CAPACITY];
+        _campaignCount = 0;
+        _campaignDocuments = 0;
+
+        _parentSlots = new LongIntHashMap(_INITIAL_CAPACITY);
+        _nullParentSlot = LongIntHashMap.MISSING;
+        _parentIds = new long[_INITIAL_CAPACITY];
+        _clicks = new long[_INITIAL_CAPACITY];
+        _views = new long[_INITIAL_CAPACITY];
+        _parentCount = 0;
+        _creativeDocuments = 0;
+
+        _totals = null;
+        _totalsIndex = null;
+        _writeGeneration.incrementAndGet();
+    }
+
+    public synchronized int insertBatch(List<DBObject> batch, String collectionName) {
+        if (Db.CREATIVES_COLLECTION.equals(collectionName)) {
+            for (DBObject creative : batch) {
+                _addCreative(creative);
+            }
+        } else if (Db.CAMPAIGNS_COLLECTION.equals(collectionName)) {
+            for (DBObject campaign : batch) {
+                _addCampaign(campaign);
+            }
+        } else {
+            throw new IllegalArgumentException("MemoryStorage does not store " + collectionName);
+        }
+        _writeGeneration.incrementAndGet();
+        return batch.size();
+    }
+
+    public long insertObjects(List<DBObject> objects, String collectionName) {
+        return insertBatch(objects, collectionName);
+    }
+
+    public void ensureIndexes() {
+        // Both sides are already keyed by id.
+    }
+
+    /**
+     * Joins the summed creatives to their campaigns, in parentId order.
+     *
+     * @return Cursor A cursor over the rows.
+     */
+    public synchronized Cursor getTotalClicksAndViewsFromCampaigns() {
+        long start = Metrics.start();
+        List<DBObject> rows = new ArrayList<DBObject>(_parentCount);
+        if (_nullParentSlot != LongIntHashMap.MISSING) {
+            rows.add(_totalsRow(_nullParentSlot, _nullCampaignSlot));
+        }
+
+        long[] parentIds = new long[_parentSlots.size()];
+        int n = 0;
+        for (int slot = 0; slot < _parentCount; slot++) {
+            if (slot != _nullParentSlot) {
+                parentIds[n++] = _parentIds[slot];
+            }
+        }
+        Arrays.sort(parentIds);
+        for (long parentId : parentIds) {
+            rows.add(_totalsRow(_parentSlots.get(parentId), _campaignSlots.get(parentId)));
+        }
+        Metrics.stop("memory.aggregate", start);
+        return new ListCursor(rows);
+    }
+
+    public synchronized void materializeCampaignTotals() {
+        List<DBObject> totals = new ArrayList<DBObject>(_parentCount);
+        Cursor cursor = getTotalClicksAndViewsFromCampaigns();
+        while (cursor.hasNext()) {
+            totals.add(cursor.next());
+        }
+        _totals = totals;
+        _totalsIndex = new LongIntHashMap(totals.size());
+        for (int i = 0; i < totals.size(); i++) {
+            Object id = totals.get(i).get("_id");
+            if (id != null) {
+                _totalsIndex.putIfAbsent(_longId(id), i);
+            }
+        }
+        _writeGeneration.incrementAndGet();
+        System.out.println("Materialized " + _totals.size() + " campaign totals in memory");
+    }
+
+    public synchronized Cursor getCampaignTotals() {
+        return new ListCursor(_totals == null ? Collections.<DBObject>emptyList() : _totals);
+    }
+
+    public synchronized DBObject getCampaignTotal(Object campaignId) {
+        if (_totals == null || _totals.isEmpty()) {
+            return null;
+        }
+        if (campaignId == null) {
+            // The row of creatives without a parentId sorts first.
+            DBObject first = _totals.get(0);
+            return first.get("_id") == null ? first : null;
+        }
+        if (!(campaignId instanceof Number)) {
+            return null;
+        }
+        Number number = (Number) campaignId;
+        if (number.longValue() != number.doubleValue()) {
+            return null;
+        }
+        int index = _totalsIndex.get(number.longValue());
+        return index == LongIntHashMap.MISSING ? null : _totals.get(index);
+    }
+
+    public synchronized Cursor getTopCampaignTotals(final String field, int n) {
+        List<DBObject> rows = new ArrayList<DBObject>(
+                _totals == null ? Collections.<DBObject>emptyList() : _totals);
+        // Highest first with missing values last, then by id like the
+        // materialized order.
+        Collections.sort(rows, new Comparator<DBObject>() {
+            public int compare(DBObject a, DBObject b) {
+                Object x = a.get(field);
+                Object y = b.get(field);
+                if (x instanceof Number && y instanceof Number) {
+                    int order = Double.compare(((Number) y).doubleValue(), ((Number) x).doubleValue());
+                    if (order != 0) {
+                        return order;
+                    }
+                } else if (x instanceof Number) {
+                    return -1;
+                } else if (y instanceof Number) {
+                    return 1;
+                }
+                return 0;
+            }
+        });
+        return new ListCursor(rows.subList(0, Math.min(Math.max(n, 0), rows.size())));
+    }
+
+    /**
+     * Rolls the materialized totals up by startDate the way
+     * Db.materializeRollups() does, each time it is called. There is one
+     * row per campaign, so this is cheap next to loading the creatives.
+     */
+    public synchronized Cursor getRollups(String period, String from, String to) {
+        // Checks the period even when there are no totals.
+        Db.getRollupStart(period, null);
+
+        // Bucket start -> {campaigns, totalClicks, totalViews}
+        TreeMap<String, long[]> buckets = new TreeMap<String, long[]>();
+        Map<String, Long> revenueNanos = new HashMap<String, Long>();
+        for (DBObject row : _totals == null ? Collections.<DBObject>emptyList() : _totals) {
+            String start = Db.getRollupStart(period, row.get("startDate"));
+            if (start == null || (from != null && start.compareTo(from) < 0)
+                    || (to != null && start.compareTo(to) >= 0)) {
+                continue;
+            }
+            long[] sums = buckets.get(start);
+            if (sums == null) {
+                sums = new long[3];
+                buckets.put(start, sums);
+            }
+            sums[0]++;
+            sums[1] += ((Number) row.get("totalClicks")).longValue();
+            sums[2] += ((Number) row.get("totalViews")).longValue();
+            Object nanos = row.get("revenueNanos");
+            if (nanos instanceof Number) {
+                Long sum = revenueNanos.get(start);
+                revenueNanos.put(start, (sum == null ? 0 : sum) + ((Number) nanos).longValue());
+            }
+        }
+
+        List<DBObject> rows = new ArrayList<DBObject>(buckets.size());
+        for (Map.Entry<String, long[]> bucket : buckets.entrySet()) {
+            String start = bucket.getKey();
+            long[] sums = bucket.getValue();
+            Long nanos = revenueNanos.get(start);
+
+            BasicDBObject row = new BasicDBObject("_id", period + ":" + start);
+            row.put("period", period);
+            row.put("start", start);
+            row.put("campaigns", _narrow(sums[0]));
+            row.put("totalClicks", _narrow(sums[1]));
+            row.put("totalViews", _narrow(sums[2]));
+            // $sum over no numbers is the Integer 0.
+            row.put("revenueNanos", nanos == null ? (Number) 0 : nanos);
+            row.put("revenue", (nanos == null ? 0 : nanos) / (double) Db.NANOS_PER_DOLLAR);
+            rows.add(row);
+        }
+        return new ListCursor(rows);
+    }
+
+    /**
+     * The creatives are summed as they are inserted and not kept, so the
+     * documents cannot be read back.
+     */
+    public Cursor getDocuments(String collectionName) {
+        throw new UnsupportedOperationException("MemoryStorage does not keep the documents of "
+                + collectionName);
+    }
+
+    public synchronized long getCollectionCount(String collectionName) {
+        if (Db.CREATIVES_COLLECTION.equals(collectionName)) {
+            return _creativeDocuments;
+        }
+        if (Db.CAMPAIGNS_COLLECTION.equals(collectionName)) {
+            return _campaignDocuments;
+        }
+        if (Db.CAMPAIGN_TOTALS_COLLECTION.equals(collectionName)) {
+            return _totals == null ? 0 : _totals.size();
+        }
+        return 0;
+    }
+
+    public long getWriteGeneration() {
+        return _writeGeneration.get();
+    }
+
+    public void close() {
+        clear();
+    }
+
+    private void _addCreative(DBObject creative) {
+        _creativeDocuments++;
+        Object parentId = creative.get("parentId");
+        int slot;
+        if (parentId == null) {
+            if (_nullParentSlot == LongIntHashMap.MISSING) {
+                _nullParentSlot = _newParentSlot(0);
+            }
+            slot = _nullParentSlot;
+        } else {
+            long key = _longId(parentId);
+            slot = _parentSlots.get(key);
+            if (slot == LongIntHashMap.MISSING) {
+                slot = _newParentSlot(key);
+                _parentSlots.putIfAbsent(key, slot);
+            }
+        }
+        _clicks[slot] += _count(creative, "clicks");
+        _views[slot] += _count(creative, "views");
+    }
+
+    private int _newParentSlot(long parentId) {
+        if (_parentCount == _parentIds.length) {
+            int capacity = _parentCount * 2;
+            _parentIds = Arrays.copyOf(_parentIds, capacity);
+            _clicks = Arrays.copyOf(_clicks, capacity);
+            _views = Arrays.copyOf(_views, capacity);
+        }
+        _parentIds[_parentCount] = parentId;
+        return _parentCount++;
+    }
+
+    private void _addCampaign(DBObject campaign) {
+        _campaignDocuments++;
+        Object id = campaign.get("id");
+        if (id == null) {
+            if (_nullCampaignSlot != LongIntHashMap.MISSING) {
+                return;
+            }
+            _nullCampaignSlot = _newCampaignSlot(campaign);
+        } else {
+            long key = _longId(id);
+            if (_campaignSlots.get(key) == LongIntHashMap.MISSING) {
+                _campaignSlots.putIfAbsent(key, _newCampaignSlot(campaign));
+            }
+        }
+    }
+
+    private int _newCampaignSlot(DBObject campaign) {
+        if (_campaignCount == _cpm.length) {
+            int capacity = _campaignCount * 2;
+            _cpm = Arrays.copyOf(_cpm, capacity);
+            _cpmMicros = Arrays.copyOf(_cpmMicros, capacity);
+            _name = Arrays.copyOf(_name, capacity);
+            _startDate = Arrays.copyOf(_startDate, capacity);
+        }
+        _cpm[_campaignCount] = campaign.get("cpm");
+        Object cpmMicros = campaign.get(Db.CPM_MICROS_FIELD);
+        _cpmMicros[_campaignCount] = cpmMicros instanceof Number
+                ? ((Number) cpmMicros).longValue() : _NO_CPM_MICROS;
+        _name[_campaignCount] = campaign.get("name");
+        _startDate[_campaignCount] = campaign.get("startDate");
+        return _campaignCount++;
+    }
+
+    /**
+     * Builds the row of one parentId slot joined to its campaign slot, with
+     * the fields in the order the pipeline returns them.
+     */
+    private DBObject _totalsRow(int parentSlot, int campaignSlot) {
+        BasicDBObject row = new BasicDBObject();
+        row.put("_id", parentSlot == _nullParentSlot ? null : _narrow(_parentIds[parentSlot]));
+
+        Long cpmMicros = null;
+        if (campaignSlot != LongIntHashMap.MISSING) {
+            if (_cpmMicros[campaignSlot] != _NO_CPM_MICROS) {
+                cpmMicros = _cpmMicros[campaignSlot];
+            }
+            _putIfPresent(row, "cpm", _cpm[campaignSlot]);
+            _putIfPresent(row, Db.CPM_MICROS_FIELD, cpmMicros);
+            _putIfPresent(row, "name", _name[campaignSlot]);
+            _putIfPresent(row, "startDate", _startDate[campaignSlot]);
+        }
+        long views = _views[parentSlot];
+        row.put("totalClicks", _narrow(_clicks[parentSlot]));
+        row.put("totalViews", _narrow(views));
+
+        // Same arithmetic as the $addFields stages: an exact integer
+        // product, then one double division.
+        Long revenueNanos = cpmMicros == null ? null : cpmMicros * views;
+        row.put("revenueNanos", revenueNanos);
+        row.put("revenue", revenueNanos == null ? null : revenueNanos / (double) Db.NANOS_PER_DOLLAR);
+        return row;
+    }
+
+    private static void _putIfPresent(DBObject row, String field, Object value) {
+        if (value != null) {
+            row.put(field, value);
+        }
+    }
+
+    /**
+     * Returns the value as an Integer when it fits, as mongoDB does for
+     * sums of Integers and as ids are stored by Db.toDBObject().
+     */
+    private static Number _narrow(long value) {
+        if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+            return (int) value;
+        }
+        return value;
+    }
+
+    private static long _longId(Object id) {
+        if (id instanceof Number) {
+            Number number = (Number) id;
+            if (number.longValue() == number.doubleValue()) {
+                return number.longValue();
+            }
+        }
+        throw new IllegalArgumentException("MemoryStorage only supports integral ids: " + id);
+    }
+
+    private static long _count(DBObject creative, String field) {
+        Object value = creative.get(field);
+        if (!(value instanceof Number)) {
+            return 0;
+        }
+        Number number = (Number) value;
+        if (number.longValue() != number.doubleValue()) {
+            throw new IllegalArgumentException("MemoryStorage only supports integral "
+                    + field + ": " + value);
+        }
+        return number.longValue();
+    }
+}
@@ -0,0 +1,154 @@
+/**
+ * A Cursor merging several cursors that are each sorted by the same order,
+ * e.g. the campaign totals of every node of a ShardedStorage sorted by
+ * campaign id. Only the next row of each cursor is held, so the merge runs
+ * in constant memory whatever the number of rows.
+ *
+ * Filename: MergedCursor.java
+ * @author: David Wang
+ *
+ */
+
+import com.mongodb.Cursor;
+import com.mongodb.DBObject;
+import com.mongodb.ServerAddress;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+public class MergedCursor implements Cursor {
+
+    private final List<Cursor> _cursors;
+    private final PriorityQueue<Head> _heads;
+    private final Comparator<DBObject> _order;
+    private long _sequence = 0;
+
+    /**
+     * @param cursors The cursors to merge, each sorted by order.
+     * @param order The order of the rows. Equal rows come out in the order
+     * they were read.
+     */
+    public MergedCursor(List<Cursor> cursors, Comparator<DBObject> order) {
+        _cursors = cursors;
+        _order = order;
+        _heads = new PriorityQueue<Head>(Math.max(1, cursors.size()), new Comparator<Head>() {
+            public int compare(Head a, Head b) {
+                int c = _order.compare(a.row, b.row);
+                return c != 0 ? c : Long.compare(a.sequence, b.sequence);
+            }
+        });
+        for (Cursor cursor : cursors) {
+            _advance(cursor);
+        }
+    }
+
+    public boolean hasNext() {
+        return !_heads.isEmpty();
+    }
+
+    public DBObject next() {
+        Head head = _heads.poll();
+        if (head == null) {
+            throw new NoSuchElementException();
+        }
+        _advance(head.cursor);
+        return head.row;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    public long getCursorId() {
+        return 0;
+    }
+
+    public ServerAddress getServerAddress() {
+        Head head = _heads.peek();
+        return head == null ? null : head.cursor.getServerAddress();
+    }
+
+    public void close() {
+        _heads.clear();
+        for (Cursor cursor : _cursors) {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Compares two values the way mongoDB sorts them: null and missing
+     * first, then numbers by value, then strings, then anything else by its
+     * string form.
+     *
+     * @param a A value.
+     * @param b A value.
+     * @return int Negative, zero or positive as a sorts before, with or
+     * after b.
+     */
+    public static int compareValues(Object a, Object b) {
+        int rankA = _rank(a);
+        int rankB = _rank(b);
+        if (rankA != rankB) {
+            return Integer.compare(rankA, rankB);
+        }
+        if (a instanceof Number) {
+            Number x = (Number) a;
+            Number y = (Number) b;
+            if (!(x instanceof Double || x instanceof Float || y instanceof Double || y instanceof Float)) {
+                return Long.compare(x.longValue(), y.longValue());
+            }
+            return Double.compare(x.doubleValue(), y.doubleValue());
+        }
+        return a == null ? 0 : a.toString().compareTo(b.toString());
+    }
+
+    /**
+     * @param field The field to order by.
+     * @param descending Whether the highest value comes first.
+     * @return Comparator The order of rows by the field, then by _id.
+     */
+    public static Comparator<DBObject> byField(final String field, final boolean descending) {
+        return new Comparator<DBObject>() {
+            public int compare(DBObject a, DBObject b) {
+                int c = compareValues(a.get(field), b.get(field));
+                if (c != 0 || "_id".equals(field)) {
+                    return descending ? -c : c;
+                }
+                return compareValues(a.get("_id"), b.get("_id"));
+            }
+        };
+    }
+
+    private static int _rank(Object value) {
+        if (value == null) {
+            return 0;
+        }
+        if (value instanceof Number) {
+            return 1;
+        }
+        if (value instanceof String) {
+            return 2;
+        }
+        return 3;
+    }
+
+    private void _advance(Cursor cursor) {
+        if (cursor.hasNext()) {
+            _heads.add(new Head(cursor.next(), cursor, _sequence++));
+        }
+    }
+
+    private static class Head {
+        final DBObject row;
+        final Cursor cursor;
+        final long sequence;
+
+        Head(DBObject row, Cursor cursor, long sequence) {
+            this.row = row;
+            this.cursor = cursor;
+            this.sequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,260 @@
+/**
+ * Lightweight run instrumentation: per-stage timers and named counters,
+ * reported as one JSON summary at the end of a run.
+ *
+ * Enable with -Dmetrics.enabled=true. When disabled, start() returns 0 and
+ * stop()/count() return immediately on a static final flag, so the JIT
+ * removes the calls from the hot paths. With -Dmetrics.file=<path> the
+ * summary is also written to a file for the nightly job to collect.
+ *
+ * No JFR events are emitted: jdk.jfr is not part of the Java SE 8 API
+ * the build compiles against (javac --release 8 rejects it), even though
+ * 8u262 and later runtimes ship JFR. Run with -XX:StartFlightRecording to
+ * get the JVM's own GC, I/O and thread events alongside the summary.
+ *
+ *   long start = Metrics.start();
+ *   ...
+ *   Metrics.stop("db.insert", start);
+ *   Metrics.count("db.inserted", n);
+ *
+ * Filename: Metrics.java
+ * @author: David Wang
+ *
+ */
+
+import com.mongodb.Cursor;
+import com.mongodb.DBObject;
+import com.mongodb.ServerAddress;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.simple.JSONObject;
+
+public class Metrics {
+
+    public static final boolean ENABLED = Boolean.getBoolean("metrics.enabled");
+    private static final String _FILE = System.getProperty("metrics.file");
+
+    private static final long _CREATED = System.nanoTime();
+
+    // Stage name -> {calls, total nanos, max nanos}
+    private static final ConcurrentMap<String, Stage> _stages = new ConcurrentHashMap<String, Stage>();
+    private static final ConcurrentMap<String, LongAdder> _counters = new ConcurrentHashMap<String, LongAdder>();
+
+    /**
+     * @return long The start time to pass to stop(), or 0 when disabled.
+     */
+    public static long start() {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records one call of the stage that began at start.
+     *
+     * @param stage The stage name, e.g. "db.insert".
+     * @param start The value returned by start().
+     * @return None
+     */
+    public static void stop(String stage, long start) {
+        if (!ENABLED) {
+            return;
+        }
+        long elapsed = System.nanoTime() - start;
+        Stage timer = _stages.get(stage);
+        if (timer == null) {
+            _stages.putIfAbsent(stage, new Stage());
+            timer = _stages.get(stage);
+        }
+        timer.record(elapsed);
+    }
+
+    /**
+     * Adds n to the named counter.
+     *
+     * @param counter The counter name, e.g. "http.bytes".
+     * @param n The amount to add.
+     * @return None
+     */
+    public static void count(String counter, long n) {
+        if (!ENABLED) {
+            return;
+        }
+        LongAdder adder = _counters.get(counter);
+        if (adder == null) {
+            _counters.putIfAbsent(counter, new LongAdder());
+            adder = _counters.get(counter);
+        }
+        adder.add(n);
+    }
+
+    /**
+     * Wraps the stream so every byte read is added to the counter. Returns
+     * the stream itself when disabled.
+     *
+     * @param counter The counter name.
+     * @param in The stream to count.
+     * @return InputStream The counting stream.
+     */
+    public static InputStream countBytes(final String counter, InputStream in) {
+        if (!ENABLED) {
+            return in;
+        }
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    count(counter, 1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) {
+                    count(counter, n);
+                }
+                return n;
+            }
+        };
+    }
+
+    /**
+     * Wraps the cursor so the stage is recorded once the cursor is
+     * exhausted or closed, whichever comes first, instead of when it was
+     * opened: an aggregation cursor is returned after the first batch, and
+     * the server keeps working while the rest is read. Returns the cursor
+     * itself when disabled.
+     *
+     * @param stage The stage name.
+     * @param start The value returned by start().
+     * @param cursor The cursor to time.
+     * @return Cursor The timed cursor.
+     */
+    public static Cursor timeCursor(final String stage, final long start, final Cursor cursor) {
+        if (!ENABLED) {
+            return cursor;
+        }
+        return new Cursor() {
+            private boolean _stopped = false;
+
+            public boolean hasNext() {
+                boolean hasNext = cursor.hasNext();
+                if (!hasNext) {
+                    _stop();
+                }
+                return hasNext;
+            }
+
+            public DBObject next() {
+                return cursor.next();
+            }
+
+            public void remove() {
+                cursor.remove();
+            }
+
+            public long getCursorId() {
+                return cursor.getCursorId();
+            }
+
+            public ServerAddress getServerAddress() {
+                return cursor.getServerAddress();
+            }
+
+            public void close() {
+                _stop();
+                cursor.close();
+            }
+
+            private synchronized void _stop() {
+                if (!_stopped) {
+                    _stopped = true;
+                    stop(stage, start);
+                }
+            }
+        };
+    }
+
+    /**
+     * Builds the summary: the run time, every stage's calls, total and
+     * maximum milliseconds, and every counter with its average rate per
+     * second over the run.
+     *
+     * @return String The summary as a JSON object.
+     */
+    @SuppressWarnings("unchecked")
+    public static String summary() {
+        double runSeconds = (System.nanoTime() - _CREATED) / 1e9;
+
+        JSONObject stages = new JSONObject();
+        for (Map.Entry<String, Stage> entry : new TreeMap<String, Stage>(_stages).entrySet()) {
+            Stage stage = entry.getValue();
+            JSONObject json = new JSONObject();
+            json.put("calls", stage.calls.get());
+            json.put("totalMs", stage.totalNanos.get() / 1e6);
+            json.put("maxMs", stage.maxNanos.get() / 1e6);
+            stages.put(entry.getKey(), json);
+        }
+
+        JSONObject counters = new JSONObject();
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<String, LongAdder>(_counters).entrySet()) {
+            long value = entry.getValue().sum();
+            JSONObject json = new JSONObject();
+            json.put("value", value);
+            json.put("perSecond", runSeconds > 0 ? value / runSeconds : 0);
+            counters.put(entry.getKey(), json);
+        }
+
+        JSONObject summary = new JSONObject();
+        summary.put("runSeconds", runSeconds);
+        summary.put("stages", stages);
+        summary.put("counters", counters);
+        return summary.toJSONString();
+    }
+
+    /**
+     * Prints the summary and writes it to -Dmetrics.file if set. Does
+     * nothing when disabled.
+     *
+     * @exception IOException An exception is thrown if the file cannot be
+     * written.
+     * @return None
+     */
+    public static void report() throws IOException {
+        if (!ENABLED) {
+            return;
+        }
+        String summary = summary();
+        System.out.println("Metrics: " + summary);
+        if (_FILE != null) {
+            Files.write(Paths.get(_FILE), summary.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static class Stage {
+        final AtomicLong calls = new AtomicLong();
+        final AtomicLong totalNanos = new AtomicLong();
+        final AtomicLong maxNanos = new AtomicLong();
+
+        void record(long nanos) {
+            calls.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long max;
+            while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * The Storage backed by mongoDB. Every operation is delegated to the static
+ * methods of Db, so it shares Db's connection and settings.
+ *
+ * Filename: MongoStorage.java
+ * @author: David Wang
+ *
+ */
+
+import com.mongodb.Cursor;
+import com.mongodb.DBObject;
+
+import java.util.List;
+
+public class MongoStorage implements Storage {
+
+    public boolean isPersistent() {
+        return true;
+    }
+
+    public void clear() throws Exception {
+        Db.dropDatabase();
+    }
+
+    public int insertBatch(List<DBObject> batch, String collectionName) throws Exception {
+        return Db.insertBatch(batch, collectionName);
+    }
+
+    public long insertObjects(List<DBObject> objects, String collectionName) throws Exception {
+        return Db.bulkInsertObjects(objects, collectionName, Db.BATCH_SIZE, Db.WRITER_THREADS);
+    }
+
+    public void ensureIndexes() throws Exception {
+        Db.ensureIndexes();
+    }
+
+    public Cursor getTotalClicksAndViewsFromCampaigns() throws Exception {
+        return Db.getTotalClicksAndViewsFromCampaigns();
+    }
+
+    public void materializeCampaignTotals() throws Exception {
+        Db.materializeCampaignTotals();
+    }
+
+    public Cursor getCampaignTotals() throws Exception {
+        return Db.getCampaignTotals();
+    }
+
+    public DBObject getCampaignTotal(Object campaignId) throws Exception {
+        return Db.getCampaignTotal(campaignId);
+    }
+
+    public Cursor getTopCampaignTotals(String field, int n) throws Exception {
+        return Db.getTopCampaignTotals(field, n);
+    }
+
+    public Cursor getRollups(String period, String from, String to) throws Exception {
+        return Db.getRollups(period, from, to);
+    }
+
+    public Cursor getDocuments(String collectionName) throws Exception {
+        return Db.getDocuments(collectionName);
+    }
+
+    public long getCollectionCount(String collectionName) throws Exception {
+        return Db.getCollectionCount(collectionName);
+    }
+
+    public long getWriteGeneration() {
+        return Db.getWriteGeneration();
+    }
+
+    public void close() {
+        Db.close();
+    }
+}
@@ -0,0 +1,133 @@
+/**
+ * A Cursor over the results of several aggregations that run concurrently,
+ * one per partition. The partitions are read back in the order they were
+ * given, so if every partition is sorted and they cover consecutive key
+ * ranges the rows come out in key order. A partition's rows are read as
+ * soon as its aggregation has returned, while the later partitions may
+ * still be running on the server.
+ *
+ * Filename: PartitionedCursor.java
+ * @author: David Wang
+ *
+ */
+
+import com.mongodb.Cursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.ServerAddress;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+
+public class PartitionedCursor implements Cursor {
+
+    private final List<Future<Cursor>> _partitions;
+    private final ExecutorService _executor;
+    private int _next;
+    private Cursor _current;
+
+    /**
+     * @param partitions The pending aggregations, in output order.
+     * @param executor The executor running them. It is shut down on close().
+     */
+    public PartitionedCursor(List<Future<Cursor>> partitions, ExecutorService executor) {
+        _partitions = partitions;
+        _executor = executor;
+    }
+
+    public boolean hasNext() {
+        while (_current == null || !_current.hasNext()) {
+            if (_current != null) {
+                _current.close();
+                _current = null;
+            }
+            if (_next == _partitions.size()) {
+                return false;
+            }
+            _current = _await(_partitions.get(_next++));
+        }
+        return true;
+    }
+
+    public DBObject next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return _current.next();
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    public long getCursorId() {
+        return 0;
+    }
+
+    public ServerAddress getServerAddress() {
+        return _current == null ? null : _current.getServerAddress();
+    }
+
+    /**
+     * Closes the partition being read, cancels the ones not started yet
+     * and waits for the others to close their cursors. A running
+     * aggregation cannot be cancelled: it still opens its cursor on the
+     * server, so that cursor has to be closed here.
+     */
+    public void close() {
+        if (_current != null) {
+            _current.close();
+            _current = null;
+        }
+        for (; _next < _partitions.size(); _next++) {
+            Future<Cursor> partition = _partitions.get(_next);
+            if (_unstarted(partition)) {
+                partition.cancel(false);
+            } else {
+                try {
+                    partition.get().close();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (ExecutionException e) {
+                    // Failed partitions have no cursor to close.
+                } catch (CancellationException e) {
+                    // Neither have cancelled ones.
+                }
+            }
+        }
+        _executor.shutdownNow();
+    }
+
+    /**
+     * Takes the partition off the executor's queue if it has not started.
+     *
+     * @return boolean true if it was removed and will never run.
+     */
+    private boolean _unstarted(Future<Cursor> partition) {
+        return _executor instanceof ThreadPoolExecutor && partition instanceof Runnable
+                && ((ThreadPoolExecutor) _executor).remove((Runnable) partition);
+    }
+
+    /**
+     * Waits for a partition's aggregation and returns its cursor.
+     */
+    private static Cursor _await(Future<Cursor> partition) {
+        try {
+            return partition.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MongoException("Interrupted waiting for a partition", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new MongoException("Partition aggregation failed", e.getCause());
+        }
+    }
+}
@@ -6,47 +6,151 @@
  *
  */
 
+import com.mongodb.BasicDBObject;
 import com.mongodb.Cursor;
-import org.json.simple.JSONArray;
+import com.mongodb.DBObject;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 public class Problem {
 
+    // Where problem1 loads the data and the reports read the totals from.
+    // Select with -Dstorage.backend=mongo (the default), memory or sharded.
+    public static final String MONGO_BACKEND = "mongo";
+    public static final String MEMORY_BACKEND = "memory";
+    public static final String SHARDED_BACKEND = "sharded";
+    private static final Storage _storage = _openStorage(System.getProperty("storage.backend", MONGO_BACKEND));
+
     /**
      * Uses Client to pull the data from the API,
      * and save it locally to a mongoDB database.
+     * By default both endpoints are loaded concurrently by IngestPipeline;
+     * run with -Dingest.pipeline=false to load them one after the other,
+     * or with -Dingest.mode=sync to update the existing data in place.
+     * If both endpoints answer that nothing changed since the last load,
+     * the database is left as it is. With -Dstorage.backend=memory the data
+     * is loaded into a MemoryStorage instead and no database is used.
      *
      * @exception Exception thrown if passed up from any of the functions.
      */
 
     public static void problem1() throws Exception {
-        // Drop the database in order to make sure there's no existing
-        // campaigns or creatives for calculation purposes.
-        Db.dropDatabase();
-
-        JSONArray creativesArray = Client.getCreatives();
-        System.out.println("Number of creatives before inserting objects: " + 
-                            Db.getCollectionCount(Db.CREATIVES_COLLECTION));
-        Db.insertObjects(creativesArray, Db.CREATIVES_COLLECTION);
-        System.out.println("Number of creatives after inserting objects: " + 
-                            Db.getCollectionCount(Db.CREATIVES_COLLECTION));
+        if ("sync".equals(System.getProperty("ingest.mode", "full"))) {
+            if (!_storage.isPersistent()) {
+                throw new IllegalStateException("ingest.mode=sync needs the "
+                        + MONGO_BACKEND + " storage backend");
+            }
+            syncProblem1();
+        } else if (_storage.isPersistent()
+                && !Client.isCreativesModified(_loadedVersion(Db.CREATIVES_COLLECTION))
+                && !Client.isCampaignsModified(_loadedVersion(Db.CAMPAIGNS_COLLECTION))) {
+            System.out.println("Campaigns and creatives not modified since the last load");
+        } else {
+            // Drop the database in order to make sure there's no existing
+            // campaigns or creatives for calculation purposes.
+            _storage.clear();
+
+            if (Boolean.parseBoolean(System.getProperty("ingest.pipeline", "true"))) {
+                // Fetch, parse, convert and insert both endpoints concurrently.
+                IngestPipeline.ingestAll(_storage);
+            } else {
+                // Stream each endpoint straight into the database in batches
+                // so the full payload is never held in memory.
+                JSONBatchInserter creatives = new JSONBatchInserter(_storage, Db.CREATIVES_COLLECTION);
+                Client.streamCreatives(creatives);
+                creatives.flush();
+
+                JSONBatchInserter campaigns = new JSONBatchInserter(_storage, Db.CAMPAIGNS_COLLECTION);
+                Client.streamCampaigns(campaigns);
+                campaigns.flush();
+            }
+
+            // Index the join keys once the data is loaded.
+            _storage.ensureIndexes();
+            _storage.materializeCampaignTotals();
+
+            // Remember which responses were loaded so an unchanged API can
+            // be detected next time.
+            if (_storage.isPersistent()) {
+                Db.saveSyncCheckpoint(Db.CREATIVES_COLLECTION,
+                        new BasicDBObject(Db.API_VERSION_FIELD, Client.getCreativesVersion()));
+                Db.saveSyncCheckpoint(Db.CAMPAIGNS_COLLECTION,
+                        new BasicDBObject(Db.API_VERSION_FIELD, Client.getCampaignsVersion()));
+            }
+        }
 
-        JSONArray campaignsArray = Client.getCampaigns();
-        System.out.println("Number of campaigns before inserting objects: " + 
-                            Db.getCollectionCount(Db.CAMPAIGNS_COLLECTION));
-        Db.insertObjects(campaignsArray, Db.CAMPAIGNS_COLLECTION);
+        System.out.println("Number of creatives after inserting objects: " + 
+                            _storage.getCollectionCount(Db.CREATIVES_COLLECTION));
         System.out.println("Number of campaigns after inserting objects: " + 
-                            Db.getCollectionCount(Db.CAMPAIGNS_COLLECTION));
+                            _storage.getCollectionCount(Db.CAMPAIGNS_COLLECTION));
+    }
+
+    /**
+     * Incremental version of problem1, selected with -Dingest.mode=sync.
+     * The database is not dropped; campaigns are matched on id and
+     * creatives on id and parentId, and only new, changed or removed
+     * records are written. The campaign totals are updated for the affected
+     * campaigns only. An endpoint that has not changed since its last sync
+     * is not parsed at all.
+     *
+     * @exception Exception thrown if passed up from any of the functions.
+     */
+    public static void syncProblem1() throws Exception {
+        // Only the totals of campaigns whose campaign or creatives changed
+        // need to be recomputed.
+        Set<Object> changed = new HashSet<Object>();
+
+        if (Client.isCreativesModified(_loadedVersion(Db.CREATIVES_COLLECTION))) {
+            SyncWriter creatives = new SyncWriter(Db.CREATIVES_COLLECTION, "id", "parentId");
+            Client.streamCreatives(creatives);
+            creatives.finish(Client.getCreativesVersion());
+            changed.addAll(creatives.getChangedKeyValues("parentId"));
+        } else {
+            System.out.println(Db.CREATIVES_COLLECTION + " not modified since the last sync");
+        }
+
+        if (Client.isCampaignsModified(_loadedVersion(Db.CAMPAIGNS_COLLECTION))) {
+            SyncWriter campaigns = new SyncWriter(Db.CAMPAIGNS_COLLECTION, "id");
+            Client.streamCampaigns(campaigns);
+            campaigns.finish(Client.getCampaignsVersion());
+            changed.addAll(campaigns.getChangedKeyValues("id"));
+        } else {
+            System.out.println(Db.CAMPAIGNS_COLLECTION + " not modified since the last sync");
+        }
+        Db.ensureIndexes();
+
+        if (Db.getCollectionCount(Db.CAMPAIGN_TOTALS_COLLECTION) == 0) {
+            Db.materializeCampaignTotals();
+        } else {
+            Db.refreshCampaignTotals(changed);
+        }
+    }
+
+    /**
+     * Returns the version of the API response the collection was last
+     * loaded or synced from.
+     *
+     * @return String The version, or null if it is not known.
+     */
+    private static String _loadedVersion(String collectionName) throws Exception {
+        DBObject checkpoint = Db.getSyncCheckpoint(collectionName);
+        return checkpoint == null ? null : (String) checkpoint.get(Db.API_VERSION_FIELD);
     }
 
     /**
      * Write a database command/query (using your database of choice) to
      * calculate total clicks and views at the campaign level per child
-     * creatives.
+     * creatives. The totals are computed once by problem1 and kept by the
+     * storage backend, so this and the following problems
+     * only read the precomputed rows.
      *
      * @exception Exception thrown if passed up from any of the functions.
      */
     public static void problem2() throws Exception {
-        Cursor cursor = Db.getTotalClicksAndViewsFromCampaigns();
+        Cursor cursor = _storage.getCampaignTotals();
         Db.printFromCursor(cursor);
     }
 
@@ -56,7 +160,7 @@ public class Problem {
      * @exception Exception thrown if passed up from any of the functions.
      */
     public static void problem3() throws Exception {
-        Cursor cursor = Db.getTotalClicksAndViewsFromCampaigns();
+        Cursor cursor = _storage.getCampaignTotals();
         Client.outputCampaignsToCSV(cursor, "Campaign_Clicks_and_Views.csv");
     }
 
@@ -68,25 +172,182 @@ public class Problem {
      * @exception Exception thrown if passed up from any of the functions.
      */
     public static void extraCredit() throws Exception {
-        Cursor cursor = Db.getTotalClicksAndViewsFromCampaigns();
+        Cursor cursor = _storage.getCampaignTotals();
         Client.outputRevenuesCampaignsToCSV(cursor, "Campaign_with_Revenue.csv");
     }
 
-    public static void main(String[] args) throws Exception {
-        System.out.println("################   Problem 1  #################");
-        Problem.problem1();
-        System.out.println("\n\n");
+    /**
+     * Produces the output of problem2, problem3 and extraCredit from a
+     * single pass over one cursor. With -Dexport.columnar=true the rows are
+     * also written to Campaign_with_Revenue.col in the columnar format.
+     *
+     * With -Dexport.rollup=day, week or month the totals rolled up by
+     * campaign startDate are written to Campaign_Rollups_by_<period>.csv,
+     * limited to the buckets starting in [-Dexport.rollupFrom,
+     * -Dexport.rollupTo) if those are set.
+     *
+     * @exception Exception thrown if passed up from any of the functions.
+     */
+    public static void allReports() throws Exception {
+        List<CampaignSink> sinks = new ArrayList<CampaignSink>();
+        Cursor cursor;
+        try {
+            sinks.add(new ConsoleSink());
+            sinks.add(new CSVSink("Campaign_Clicks_and_Views.csv", false));
+            sinks.add(new CSVSink("Campaign_with_Revenue.csv", true));
+            if (Boolean.getBoolean("export.columnar")) {
+                sinks.add(new ColumnarSink("Campaign_with_Revenue.col"));
+            }
+            cursor = _storage.getCampaignTotals();
+        } catch (Exception e) {
+            // Discard the temporary files of the sinks already opened.
+            for (CampaignSink sink : sinks) {
+                sink.abort();
+            }
+            throw e;
+        }
+        Client.outputCampaigns(cursor, sinks.toArray(new CampaignSink[sinks.size()]));
+
+        String period = System.getProperty("export.rollup");
+        if (period != null) {
+            Cursor rollups = _storage.getRollups(period, System.getProperty("export.rollupFrom"),
+                                                 System.getProperty("export.rollupTo"));
+            Client.outputRollupsToCSV(rollups, "Campaign_Rollups_by_" + period + ".csv");
+        }
+    }
+
+    /**
+     * Checks the loaded database: the declared indexes must be used by the
+     * query planner and both totals pipelines must return the same rows.
+     * Run with "./run verify" after a load.
+     *
+     * @exception Exception thrown if passed up from any of the functions.
+     */
+    public static void verify() throws Exception {
+        boolean indexesUsed = Db.verifyIndexes();
+        boolean identical = Db.compareTotalsStrategies();
+        if (!indexesUsed || !identical) {
+            throw new IllegalStateException("Verification failed");
+        }
+    }
+
+    /**
+     * Loads the data like problem1 and serves the campaign totals over HTTP
+     * with TotalsServer until the process is stopped. Run with
+     * "./run serve". With -Dquery.refreshSeconds=<n> problem1 runs again
+     * every n seconds; whatever it writes invalidates the cached responses.
+     * With -Dingest.mode=sync the totals are updated in place, otherwise
+     * queries see no totals while a full reload is under way.
+     *
+     * @exception Exception thrown if passed up from any of the functions.
+     */
+    public static void serve() throws Exception {
+        problem1();
+        final TotalsServer server = TotalsServer.fromProperties(_storage);
+        server.start();
+
+        long refreshSeconds = Long.getLong("query.refreshSeconds", 0L);
+        while (true) {
+            if (refreshSeconds > 0) {
+                Thread.sleep(refreshSeconds * 1000);
+                try {
+                    problem1();
+                } catch (Exception e) {
+                    System.err.println("Refresh failed: " + e);
+                }
+            } else {
+                Thread.sleep(Long.MAX_VALUE);
+            }
+        }
+    }
 
-        System.out.println("################   Problem 2  #################");
-        Problem.problem2();
-        System.out.println("\n\n");
+    /**
+     * Returns the storage backend with the given name.
+     */
+    private static Storage _openStorage(String backend) {
+        if (MONGO_BACKEND.equals(backend)) {
+            return new MongoStorage();
+        } else if (MEMORY_BACKEND.equals(backend)) {
+            return new MemoryStorage();
+        } else if (SHARDED_BACKEND.equals(backend)) {
+            try {
+                return new ShardedStorage();
+            } catch (Exception e) {
+                throw new IllegalArgumentException("Invalid db.nodes: " + e.getMessage(), e);
+            }
+        }
+        throw new IllegalArgumentException("Unknown storage backend: " + backend);
+    }
+
+    /**
+     * Reports the metrics without letting a failure to write them replace
+     * the exception that is ending the run.
+     */
+    private static void _reportMetrics() {
+        try {
+            Metrics.report();
+        } catch (Exception e) {
+            System.err.println("Warning: could not report the metrics: " + e);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("verify")) {
+            try {
+                Problem.verify();
+            } finally {
+                Db.close();
+            }
+            return;
+        }
+        if (args.length > 0 && args[0].equals("snapshot")) {
+            try {
+                Snapshot.write(args.length > 1 ? args[1] : Snapshot.DEFAULT_FILE, _storage);
+            } finally {
+                _storage.close();
+                _reportMetrics();
+            }
+            return;
+        }
+        if (args.length > 0 && args[0].equals("restore")) {
+            try {
+                Snapshot.restore(args.length > 1 ? args[1] : Snapshot.DEFAULT_FILE, _storage);
+                System.out.println("Number of creatives after restoring: "
+                        + _storage.getCollectionCount(Db.CREATIVES_COLLECTION));
+                System.out.println("Number of campaigns after restoring: "
+                        + _storage.getCollectionCount(Db.CAMPAIGNS_COLLECTION));
+            } finally {
+                _storage.close();
+                _reportMetrics();
+            }
+            return;
+        }
+        if (args.length > 0 && args[0].equals("serve")) {
+            try {
+                Problem.serve();
+            } finally {
+                _storage.close();
+                Client.close();
+            }
+            return;
+        }
 
-        System.out.println("################   Problem 3  #################");
-        Problem.problem3();
-        System.out.println("\n\n");
+        try {
+            System.out.println("################   Problem 1  #################");
+            long start = Metrics.start();
+            Problem.problem1();
+            Metrics.stop("problem1", start);
+            System.out.println("\n\n");
 
-        System.out.println("################ Extra Credit #################");
-        Problem.extraCredit();
-        System.out.println("\n\n");
+            System.out.println("######## Problem 2, 3 and Extra Credit ########");
+            start = Metrics.start();
+            Problem.allReports();
+            Metrics.stop("reports", start);
+            System.out.println("\n\n");
+        } finally {
+            _storage.close();
+            Client.close();
+            _reportMetrics();
+        }
     }
 }
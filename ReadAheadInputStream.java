@@ -0,0 +1,128 @@
+/**
+ * An InputStream that is filled by a separate reader task. The reader copies
+ * the source stream into chunks on a bounded queue, so network reads keep
+ * going while the consumer is busy parsing, and stop once the consumer falls
+ * too far behind.
+ *
+ * Filename: ReadAheadInputStream.java
+ * @author: David Wang
+ *
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+
+public class ReadAheadInputStream extends InputStream {
+
+    // Marks the end of the source stream, or that the reader failed.
+    private static final byte[] _END_OF_STREAM = new byte[0];
+
+    private final InputStream _source;
+    private final int _chunkSize;
+    private final BlockingQueue<byte[]> _chunks;
+    private volatile IOException _readerError;
+
+    private byte[] _current = null;
+    private int _position = 0;
+    private boolean _finished = false;
+
+    /**
+     * @param source The stream to read ahead of the consumer.
+     * @param chunkSize The number of bytes read per chunk.
+     * @param capacity The maximum number of chunks buffered.
+     */
+    public ReadAheadInputStream(InputStream source, int chunkSize, int capacity) {
+        _source = source;
+        _chunkSize = chunkSize;
+        _chunks = new ArrayBlockingQueue<byte[]>(capacity);
+    }
+
+    /**
+     * Returns the task that copies the source into the queue. It must be run
+     * on a different thread than the one reading from this stream.
+     *
+     * @return Callable A task returning the number of bytes read.
+     */
+    public Callable<Long> reader() {
+        return new Callable<Long>() {
+            public Long call() throws Exception {
+                long total = 0;
+                try {
+                    byte[] buffer = new byte[_chunkSize];
+                    int n;
+                    while ((n = _source.read(buffer)) != -1) {
+                        if (n > 0) {
+                            _chunks.put(Arrays.copyOf(buffer, n));
+                            total += n;
+                        }
+                    }
+                    return total;
+                } catch (IOException e) {
+                    _readerError = e;
+                    throw e;
+                } finally {
+                    _source.close();
+                    _chunks.put(_END_OF_STREAM);
+                }
+            }
+        };
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!_fill()) {
+            return -1;
+        }
+        return _current[_position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!_fill()) {
+            return -1;
+        }
+        int n = Math.min(len, _current.length - _position);
+        System.arraycopy(_current, _position, b, off, n);
+        _position += n;
+        return n;
+    }
+
+    @Override
+    public void close() {
+        // Drop anything still buffered; the reader is stopped by its owner.
+        _finished = true;
+        _chunks.clear();
+    }
+
+    /**
+     * Makes sure _current has unread bytes, waiting for the reader if needed.
+     *
+     * @return boolean false once the end of the stream has been reached.
+     */
+    private boolean _fill() throws IOException {
+        while (!_finished && (_current == null || _position == _current.length)) {
+            try {
+                _current = _chunks.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for data");
+            }
+            _position = 0;
+            if (_current == _END_OF_STREAM) {
+                _finished = true;
+                if (_readerError != null) {
+                    throw new IOException("Read ahead failed", _readerError);
+                }
+            }
+        }
+        return !_finished;
+    }
+}
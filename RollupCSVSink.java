@@ -0,0 +1,51 @@
+/**
+ * A CampaignSink that writes campaign rollup buckets, as returned by
+ * Db.getRollups(), to a CSV file with the columns period, start, campaigns,
+ * totalClicks, totalViews and revenue.
+ *
+ * Like CSVSink the file is written by a CSVExportWriter, so it is replaced
+ * atomically once the export completes and can be gzipped with
+ * -Dexport.gzip=true.
+ *
+ * Filename: RollupCSVSink.java
+ * @author: David Wang
+ *
+ */
+
+import com.mongodb.DBObject;
+
+import java.io.IOException;
+
+public class RollupCSVSink implements CampaignSink {
+
+    private final CSVExportWriter _writer;
+
+    /**
+     * Opens the CSV file and writes the header.
+     *
+     * @param filename The name of the CSV file to print out the buckets to.
+     * @exception IOException An exception is thrown if a file is not able to be
+     * opened or written to.
+     */
+    public RollupCSVSink(String filename) throws IOException {
+        _writer = new CSVExportWriter(filename, "period", "start", "campaigns",
+                                      "totalClicks", "totalViews", "revenue");
+        System.out.println("Writing rollups to " + _writer.getFilename() + "...");
+    }
+
+    public void accept(DBObject obj) throws IOException {
+        _writer.writeRow(obj.get("period"), obj.get("start"), obj.get("campaigns"),
+                         obj.get("totalClicks"), obj.get("totalViews"), obj.get("revenue"));
+    }
+
+    public void close() throws IOException {
+        _writer.close();
+        System.out.println("Finished writing " + _writer.getRowCount() + " rollups to "
+                + _writer.getFilename());
+    }
+
+    public void abort() {
+        _writer.abort();
+        System.out.println("Discarded " + _writer.getFilename());
+    }
+}
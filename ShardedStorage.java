@@ -0,0 +1,480 @@
+/**
+ * A Storage that spreads the campaigns and creatives over several mongod
+ * nodes, so loading is not limited by the write throughput of one server.
+ * Select it with -Dstorage.backend=sharded and list the nodes with
+ * -Ddb.nodes=host:port,host:port,... (default db.host:db.port). Every node
+ * uses the database named by db.name and the connection settings of Db.
+ *
+ * Creatives are routed by a hash of parentId and campaigns by a hash of
+ * id, so a campaign and all of its creatives live on the same node. Each
+ * node can then run the usual totals pipeline, $lookup included, on its
+ * own data, and the rows of the nodes never overlap:
+ *
+ *   - materializeCampaignTotals() builds campaign_totals and
+ *     campaign_rollups on every node at the same time.
+ *   - the totals reads scatter the query to every node and merge the
+ *     sorted results with a MergedCursor, so they still come out in
+ *     campaign id order.
+ *   - getCampaignTotal() only asks the node that owns the campaign.
+ *   - getRollups() sums the buckets of every node, since campaigns that
+ *     started on the same day can live on different nodes.
+ *   - getDocuments() merges the documents of every node, so a Snapshot
+ *     holds the data of the whole cluster.
+ *
+ * Writes are split by node and each node has its own pool of
+ * -Ddb.nodeWriterThreads writers (default db.writerThreads), so all nodes
+ * are written concurrently.
+ *
+ * The sync checkpoints and incremental sync of problem1 work against the
+ * single Db node only, so this storage reports itself as not persistent:
+ * every run does a full load and ingest.mode=sync is refused.
+ *
+ * Filename: ShardedStorage.java
+ * @author: David Wang
+ *
+ */
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.Cursor;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoException;
+import com.mongodb.ServerAddress;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ShardedStorage implements Storage {
+
+    private static final int _NODE_WRITER_THREADS =
+            Integer.getInteger("db.nodeWriterThreads", Db.WRITER_THREADS);
+
+    // Fields summed when the rollup buckets of the nodes are merged.
+    private static final String[] _ROLLUP_SUMS = {
+        "campaigns", "totalClicks", "totalViews", "revenueNanos"
+    };
+
+    private final List<Node> _nodes = new ArrayList<Node>();
+    // Runs the per-node queries of a scatter-gather.
+    private final ExecutorService _queries = Executors.newCachedThreadPool();
+    private final AtomicLong _writeGeneration = new AtomicLong();
+
+    /**
+     * Connects to the nodes listed by -Ddb.nodes.
+     *
+     * @exception Exception Exception is thrown if the node list is invalid.
+     */
+    public ShardedStorage() throws Exception {
+        this(parseNodes(System.getProperty("db.nodes",
+                System.getProperty("db.host", "localhost") + ":"
+                + Integer.getInteger("db.port", 27017))));
+    }
+
+    /**
+     * @param addresses The nodes, in routing order. The same data must
+     * always be opened with the same nodes in the same order.
+     * @exception Exception Exception is thrown if a client cannot be
+     * created.
+     */
+    public ShardedStorage(List<ServerAddress> addresses) throws Exception {
+        if (addresses.isEmpty()) {
+            throw new IllegalArgumentException("ShardedStorage needs at least one node");
+        }
+        for (ServerAddress address : addresses) {
+            _nodes.add(new Node(address));
+        }
+        System.out.println("Sharding over " + _nodes.size() + " nodes: " + addresses);
+    }
+
+    /**
+     * Parses a node list such as "localhost:27017,localhost:27018". A node
+     * without a port uses 27017.
+     *
+     * @param nodes The comma separated nodes.
+     * @exception Exception Exception is thrown if a node is not a valid
+     * host and port.
+     * @return List The addresses, in order.
+     */
+    public static List<ServerAddress> parseNodes(String nodes) throws Exception {
+        List<ServerAddress> addresses = new ArrayList<ServerAddress>();
+        for (String node : nodes.split(",")) {
+            node = node.trim();
+            if (node.isEmpty()) {
+                continue;
+            }
+            int colon = node.lastIndexOf(':');
+            if (colon < 0) {
+                addresses.add(new ServerAddress(node));
+            } else {
+                addresses.add(new ServerAddress(node.substring(0, colon),
+                                                Integer.parseInt(node.substring(colon + 1))));
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Returns the index of the node that stores the campaign with this id
+     * and its creatives. Integral numbers route by value, so an int and a
+     * long parentId of the same campaign go to the same node.
+     *
+     * @param campaignId A campaign id or creative parentId; may be null.
+     * @return int The node index.
+     */
+    public int nodeOf(Object campaignId) {
+        long hash;
+        if (campaignId instanceof Number) {
+            Number number = (Number) campaignId;
+            hash = number.longValue() == number.doubleValue()
+                    ? number.longValue() : Double.hashCode(number.doubleValue());
+        } else {
+            hash = campaignId == null ? 0 : campaignId.hashCode();
+        }
+        // Mix the bits so strided ids still spread over the nodes.
+        hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+        hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return (int) Math.floorMod(hash, (long) _nodes.size());
+    }
+
+    public boolean isPersistent() {
+        return false;
+    }
+
+    public void clear() throws Exception {
+        _scatter(new NodeTask<Object>() {
+            public Object call(Node node) {
+                node.db.dropDatabase();
+                return null;
+            }
+        });
+        _writeGeneration.incrementAndGet();
+        System.out.println("Dropped database on " + _nodes.size() + " nodes");
+    }
+
+    public int insertBatch(List<DBObject> batch, String collectionName) throws Exception {
+        return (int) insertObjects(batch, collectionName);
+    }
+
+    /**
+     * Routes the documents to their nodes and writes each node's share in
+     * batches of Db.BATCH_SIZE on that node's writers.
+     */
+    public long insertObjects(List<DBObject> objects, String collectionName) throws Exception {
+        String routingField;
+        if (Db.CREATIVES_COLLECTION.equals(collectionName)) {
+            routingField = "parentId";
+        } else if (Db.CAMPAIGNS_COLLECTION.equals(collectionName)) {
+            routingField = "id";
+        } else {
+            throw new IllegalArgumentException("ShardedStorage does not store " + collectionName);
+        }
+
+        List<List<DBObject>> routed = new ArrayList<List<DBObject>>(_nodes.size());
+        for (int i = 0; i < _nodes.size(); i++) {
+            routed.add(new ArrayList<DBObject>());
+        }
+        for (DBObject object : objects) {
+            routed.get(nodeOf(object.get(routingField))).add(object);
+        }
+
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for (int i = 0; i < _nodes.size(); i++) {
+            List<DBObject> share = routed.get(i);
+            final DBCollection coll = _nodes.get(i).db.getCollection(collectionName);
+            for (int from = 0; from < share.size(); from += Db.BATCH_SIZE) {
+                final List<DBObject> batch = share.subList(from, Math.min(share.size(), from + Db.BATCH_SIZE));
+                results.add(_nodes.get(i).writers.submit(new Callable<Integer>() {
+                    public Integer call() {
+                        return Db.insertBatch(coll, batch);
+                    }
+                }));
+            }
+        }
+
+        long inserted = 0;
+        try {
+            for (Future<Integer> result : results) {
+                inserted += _await(result);
+            }
+        } finally {
+            _writeGeneration.incrementAndGet();
+        }
+        return inserted;
+    }
+
+    public void ensureIndexes() throws Exception {
+        _scatter(new NodeTask<Object>() {
+            public Object call(Node node) {
+                Db.ensureIndexes(node.db);
+                return null;
+            }
+        });
+    }
+
+    public Cursor getTotalClicksAndViewsFromCampaigns() throws Exception {
+        System.out.println("Performing aggregation query of campaigns and creatives on "
+                + _nodes.size() + " nodes...");
+        long start = Metrics.start();
+        List<Cursor> cursors = _scatter(new NodeTask<Cursor>() {
+            public Cursor call(Node node) {
+                List<DBObject> pipeline = Db.getTotalsPipeline();
+                pipeline.add(new BasicDBObject("$sort", new BasicDBObject("_id", 1)));
+                return Db.aggregate(node.db.getCollection(Db.CREATIVES_COLLECTION), pipeline);
+            }
+        });
+        return Metrics.timeCursor("sharded.aggregate", start,
+                new MergedCursor(cursors, MergedCursor.byField("_id", false)));
+    }
+
+    /**
+     * Builds the totals and rollups of every node from its own campaigns
+     * and creatives, all nodes at the same time.
+     */
+    public void materializeCampaignTotals() throws Exception {
+        System.out.println("Materializing " + Db.CAMPAIGN_TOTALS_COLLECTION + " on "
+                + _nodes.size() + " nodes...");
+        long start = Metrics.start();
+        try {
+            _scatter(new NodeTask<Object>() {
+                public Object call(Node node) {
+                    List<DBObject> totals = Db.getTotalsPipeline();
+                    totals.add(new BasicDBObject("$out", Db.CAMPAIGN_TOTALS_COLLECTION));
+                    Db.aggregate(node.db.getCollection(Db.CREATIVES_COLLECTION), totals).close();
+
+                    // The rollups are optional, as in Db.materializeRollups().
+                    List<DBObject> rollups = Db.getRollupPipeline();
+                    rollups.add(new BasicDBObject("$out", Db.CAMPAIGN_ROLLUPS_COLLECTION));
+                    try {
+                        Db.aggregate(node.db.getCollection(Db.CAMPAIGN_TOTALS_COLLECTION), rollups).close();
+                    } catch (MongoException e) {
+                        System.err.println("Warning: skipping the campaign rollups on "
+                                + node.client.getAddress() + ": " + e.getMessage());
+                        node.db.getCollection(Db.CAMPAIGN_ROLLUPS_COLLECTION).drop();
+                        return null;
+                    }
+                    node.db.getCollection(Db.CAMPAIGN_ROLLUPS_COLLECTION).createIndex(
+                            new BasicDBObject("period", 1).append("start", 1));
+                    return null;
+                }
+            });
+        } finally {
+            _writeGeneration.incrementAndGet();
+        }
+        Metrics.stop("sharded.materialize", start);
+        System.out.println("Materialized " + getCollectionCount(Db.CAMPAIGN_TOTALS_COLLECTION)
+                + " campaign totals");
+    }
+
+    public Cursor getCampaignTotals() throws Exception {
+        List<Cursor> cursors = _scatter(new NodeTask<Cursor>() {
+            public Cursor call(Node node) {
+                return node.db.getCollection(Db.CAMPAIGN_TOTALS_COLLECTION).find()
+                        .sort(new BasicDBObject("_id", 1)).batchSize(Db.BATCH_SIZE);
+            }
+        });
+        return new MergedCursor(cursors, MergedCursor.byField("_id", false));
+    }
+
+    public DBObject getCampaignTotal(Object campaignId) throws Exception {
+        DBCollection coll = _nodes.get(nodeOf(campaignId)).db.getCollection(Db.CAMPAIGN_TOTALS_COLLECTION);
+        return coll.findOne(new BasicDBObject("_id", campaignId));
+    }
+
+    /**
+     * Takes the n highest rows of every node and keeps the n highest of
+     * those.
+     */
+    public Cursor getTopCampaignTotals(final String field, final int n) throws Exception {
+        List<Cursor> cursors = _scatter(new NodeTask<Cursor>() {
+            public Cursor call(Node node) {
+                return node.db.getCollection(Db.CAMPAIGN_TOTALS_COLLECTION).find()
+                        .sort(new BasicDBObject(field, -1).append("_id", 1)).limit(n);
+            }
+        });
+        Cursor merged = new MergedCursor(cursors, MergedCursor.byField(field, true));
+        List<DBObject> top = new ArrayList<DBObject>();
+        try {
+            while (top.size() < n && merged.hasNext()) {
+                top.add(merged.next());
+            }
+        } finally {
+            merged.close();
+        }
+        return new ListCursor(top);
+    }
+
+    /**
+     * Sums the matching buckets of every node. A range holds at most one
+     * bucket per day, so the merged buckets are kept in memory.
+     */
+    public Cursor getRollups(String period, String from, String to) throws Exception {
+        final DBObject query = Db.getRollupQuery(period, from, to);
+        List<Cursor> cursors = _scatter(new NodeTask<Cursor>() {
+            public Cursor call(Node node) {
+                return node.db.getCollection(Db.CAMPAIGN_ROLLUPS_COLLECTION).find(query);
+            }
+        });
+
+        Map<String, DBObject> buckets = new TreeMap<String, DBObject>();
+        for (Cursor cursor : cursors) {
+            try {
+                while (cursor.hasNext()) {
+                    DBObject bucket = cursor.next();
+                    DBObject merged = buckets.get((String) bucket.get("start"));
+                    if (merged == null) {
+                        buckets.put((String) bucket.get("start"), bucket);
+                        continue;
+                    }
+                    for (String field : _ROLLUP_SUMS) {
+                        merged.put(field, _add(merged.get(field), bucket.get(field)));
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        for (DBObject bucket : buckets.values()) {
+            Object revenueNanos = bucket.get("revenueNanos");
+            if (revenueNanos instanceof Number) {
+                bucket.put("revenue", ((Number) revenueNanos).longValue() / (double) Db.NANOS_PER_DOLLAR);
+            }
+        }
+        return new ListCursor(new ArrayList<DBObject>(buckets.values()));
+    }
+
+    /**
+     * Reads the collection of every node in _id order and merges them.
+     */
+    public Cursor getDocuments(final String collectionName) throws Exception {
+        List<Cursor> cursors = _scatter(new NodeTask<Cursor>() {
+            public Cursor call(Node node) {
+                return node.db.getCollection(collectionName).find()
+                        .sort(new BasicDBObject("_id", 1)).batchSize(Db.BATCH_SIZE);
+            }
+        });
+        return new MergedCursor(cursors, MergedCursor.byField("_id", false));
+    }
+
+    public long getCollectionCount(final String collectionName) throws Exception {
+        long count = 0;
+        for (Long nodeCount : _scatter(new NodeTask<Long>() {
+            public Long call(Node node) {
+                return node.db.getCollection(collectionName).count();
+            }
+        })) {
+            count += nodeCount;
+        }
+        return count;
+    }
+
+    public long getWriteGeneration() {
+        return _writeGeneration.get();
+    }
+
+    public void close() {
+        _queries.shutdownNow();
+        for (Node node : _nodes) {
+            node.close();
+        }
+        System.out.println("Disconnected from " + _nodes.size() + " nodes");
+    }
+
+    /**
+     * Runs the task on every node at the same time and returns the results
+     * in node order. If any node fails, its error is rethrown once all
+     * nodes are done, after closing the cursors the others returned.
+     */
+    private <T> List<T> _scatter(final NodeTask<T> task) throws Exception {
+        List<Future<T>> futures = new ArrayList<Future<T>>(_nodes.size());
+        for (final Node node : _nodes) {
+            futures.add(_queries.submit(new Callable<T>() {
+                public T call() throws Exception {
+                    return task.call(node);
+                }
+            }));
+        }
+
+        List<T> results = new ArrayList<T>(futures.size());
+        Exception failure = null;
+        for (Future<T> future : futures) {
+            try {
+                results.add(_await(future));
+            } catch (Exception e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            for (T result : results) {
+                if (result instanceof Cursor) {
+                    ((Cursor) result).close();
+                }
+            }
+            throw failure;
+        }
+        return results;
+    }
+
+    private static <T> T _await(Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw new MongoException("Node task failed", e.getCause());
+        }
+    }
+
+    /**
+     * Adds two summed values, keeping integers exact when both are.
+     */
+    private static Object _add(Object a, Object b) {
+        if (!(a instanceof Number)) {
+            return b;
+        }
+        if (!(b instanceof Number)) {
+            return a;
+        }
+        for (Object value : Arrays.asList(a, b)) {
+            if (value instanceof Double || value instanceof Float) {
+                return ((Number) a).doubleValue() + ((Number) b).doubleValue();
+            }
+        }
+        return ((Number) a).longValue() + ((Number) b).longValue();
+    }
+
+    private interface NodeTask<T> {
+        T call(Node node) throws Exception;
+    }
+
+    private static class Node {
+        final MongoClient client;
+        final DB db;
+        final ExecutorService writers;
+
+        Node(ServerAddress address) throws Exception {
+            client = Db.newClient(address);
+            db = Db.getDatabase(client);
+            writers = Executors.newFixedThreadPool(_NODE_WRITER_THREADS);
+        }
+
+        void close() {
+            writers.shutdownNow();
+            client.close();
+        }
+    }
+}
@@ -0,0 +1,398 @@
+/**
+ * Dumps the loaded campaigns and creatives to a compact binary file and
+ * restores them from it, so a wiped or moved database can be reloaded in
+ * seconds without pulling the whole API again:
+ *
+ *   $ ./run snapshot [file]    write the file from the storage
+ *   $ ./run restore [file]     reload the storage from the file
+ *
+ * File layout (little endian):
+ *
+ *   "CSNP" magic, int version
+ *   sections, one per collection: the documents as BSON, back to back.
+ *     Each BSON document starts with its own int length.
+ *   footer:
+ *     int sections,
+ *     (short name length, UTF-8 name, long documents, long offset,
+ *      long length, long CRC32 of the section)[sections]
+ *   long footer offset, "CSNP" magic
+ *
+ * The snapshot holds the campaigns, the creatives and the sync checkpoints,
+ * so a sync run after a restore only writes what changed since the
+ * snapshot. The campaign totals are not stored; restore() materializes
+ * them again.
+ *
+ * restore() maps the file and checks every section against its checksum
+ * before the storage is cleared, so a damaged file leaves the current data
+ * alone. The sections are then decoded and inserted by Db.WRITER_THREADS
+ * threads in batches of Db.BATCH_SIZE, reading the documents straight out
+ * of the mapping.
+ *
+ * Filename: Snapshot.java
+ * @author: David Wang
+ *
+ */
+
+import com.mongodb.Cursor;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+
+import org.bson.BasicBSONEncoder;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+public class Snapshot {
+
+    public static final int MAGIC = 0x504e5343; // "CSNP" read little endian
+    public static final int VERSION = 1;
+    public static final String DEFAULT_FILE = "client.snapshot";
+
+    // The collections written to a snapshot, in file order.
+    private static final String[] _COLLECTIONS = {
+        Db.CAMPAIGNS_COLLECTION, Db.CREATIVES_COLLECTION, Db.SYNC_CHECKPOINTS_COLLECTION
+    };
+
+    // Documents are read through mappings of at most this many bytes, so
+    // sections larger than a MappedByteBuffer can hold are still readable.
+    private static final long _WINDOW = 1L << 30;
+
+    /**
+     * Writes the snapshot of the storage to the file. The file is written
+     * under a temporary name, forced to disk and renamed into place; the
+     * temporary file is deleted if anything fails.
+     *
+     * @param filename The file to create or replace.
+     * @param storage The storage to read the documents from; it must keep
+     * them, see Storage.getDocuments().
+     * @exception Exception Thrown if the storage cannot be read or the
+     * file cannot be written.
+     * @return None
+     */
+    public static void write(String filename, Storage storage) throws Exception {
+        long start = Metrics.start();
+        Path target = Paths.get(filename).toAbsolutePath();
+        Path temp = CSVExportWriter.createTempSibling(target);
+        List<Section> sections = new ArrayList<Section>();
+
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            CountingOutputStream out = new CountingOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+            ByteBuffer header = _buffer(8);
+            header.putInt(MAGIC).putInt(VERSION);
+            out.write(header.array());
+
+            BasicBSONEncoder encoder = new BasicBSONEncoder();
+            for (String collectionName : _COLLECTIONS) {
+                Section section = new Section(collectionName);
+                section.offset = out.count;
+                CRC32 crc = new CRC32();
+                Cursor cursor = storage.getDocuments(collectionName);
+                try {
+                    while (cursor.hasNext()) {
+                        byte[] document = encoder.encode(cursor.next());
+                        crc.update(document);
+                        out.write(document);
+                        section.documents++;
+                    }
+                } finally {
+                    cursor.close();
+                }
+                section.length = out.count - section.offset;
+                section.crc = crc.getValue();
+                sections.add(section);
+                System.out.println("Wrote " + section.documents + " " + collectionName
+                        + " to the snapshot");
+            }
+
+            long footerOffset = out.count;
+            ByteBuffer count = _buffer(4);
+            count.putInt(sections.size());
+            out.write(count.array());
+            for (Section section : sections) {
+                byte[] name = section.name.getBytes(StandardCharsets.UTF_8);
+                ByteBuffer entry = _buffer(2 + name.length + 32);
+                entry.putShort((short) name.length).put(name).putLong(section.documents)
+                     .putLong(section.offset).putLong(section.length).putLong(section.crc);
+                out.write(entry.array());
+            }
+            ByteBuffer trailer = _buffer(12);
+            trailer.putLong(footerOffset).putInt(MAGIC);
+            out.write(trailer.array());
+            out.flush();
+
+            // Make the contents durable before the rename can replace a
+            // good snapshot with it.
+            channel.force(true);
+        } catch (Exception e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+
+        try {
+            try {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING,
+                           StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Metrics.stop("snapshot.write", start);
+        System.out.println("Wrote snapshot " + target + " (" + Files.size(target) + " bytes)");
+    }
+
+    /**
+     * Replaces the contents of the storage with the snapshot, then indexes
+     * the join keys and materializes the campaign totals. The sync
+     * checkpoints are only restored into a persistent storage.
+     *
+     * @param filename The snapshot file.
+     * @param storage The storage to restore into.
+     * @exception Exception Thrown if the file is not a valid snapshot, a
+     * section does not match its checksum, or the storage cannot be written.
+     * @return None
+     */
+    public static void restore(String filename, Storage storage) throws Exception {
+        long start = Metrics.start();
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            Map<String, Section> sections = _readFooter(channel, filename);
+            for (Section section : sections.values()) {
+                _verify(channel, section, filename);
+            }
+
+            storage.clear();
+            for (Section section : sections.values()) {
+                if (Db.SYNC_CHECKPOINTS_COLLECTION.equals(section.name)) {
+                    if (storage.isPersistent()) {
+                        _insert(channel, section, new MongoStorage());
+                    }
+                } else {
+                    _insert(channel, section, storage);
+                }
+            }
+        }
+        storage.ensureIndexes();
+        storage.materializeCampaignTotals();
+        Metrics.stop("snapshot.restore", start);
+    }
+
+    /**
+     * Reads the section table of the file.
+     */
+    private static Map<String, Section> _readFooter(FileChannel channel, String filename)
+            throws IOException {
+        long size = channel.size();
+        ByteBuffer header = _read(channel, 0, 8);
+        if (size < 24 || header.getInt() != MAGIC) {
+            throw new IOException(filename + " is not a snapshot file");
+        }
+        int version = header.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported version " + version + " in " + filename);
+        }
+        ByteBuffer trailer = _read(channel, size - 12, 12);
+        long footerOffset = trailer.getLong();
+        if (trailer.getInt() != MAGIC || footerOffset < 8 || footerOffset > size - 16) {
+            throw new IOException(filename + " is truncated");
+        }
+
+        ByteBuffer footer = _read(channel, footerOffset, (int) (size - 12 - footerOffset));
+        Map<String, Section> sections = new LinkedHashMap<String, Section>();
+        int count = footer.getInt();
+        if (count < 0 || count > footer.remaining() / 34) {
+            throw new IOException("Bad section count " + count + " in " + filename);
+        }
+        for (int i = 0; i < count; i++) {
+            int nameLength = footer.remaining() < 2 ? -1 : footer.getShort();
+            if (nameLength < 0 || nameLength > footer.remaining() - 32) {
+                throw new IOException("Bad section entry " + i + " in " + filename);
+            }
+            byte[] name = new byte[nameLength];
+            footer.get(name);
+            Section section = new Section(new String(name, StandardCharsets.UTF_8));
+            section.documents = footer.getLong();
+            section.offset = footer.getLong();
+            section.length = footer.getLong();
+            section.crc = footer.getLong();
+            if (section.offset < 8 || section.offset + section.length > footerOffset) {
+                throw new IOException("Section " + section.name + " is out of bounds in " + filename);
+            }
+            sections.put(section.name, section);
+        }
+        return sections;
+    }
+
+    private static void _verify(FileChannel channel, Section section, String filename)
+            throws IOException {
+        CRC32 crc = new CRC32();
+        for (long position = 0; position < section.length; position += _WINDOW) {
+            crc.update(channel.map(FileChannel.MapMode.READ_ONLY, section.offset + position,
+                                   Math.min(_WINDOW, section.length - position)));
+        }
+        if (crc.getValue() != section.crc) {
+            throw new IOException("Checksum mismatch in section " + section.name + " of " + filename);
+        }
+    }
+
+    /**
+     * Cuts the section into batches of Db.BATCH_SIZE documents on the
+     * calling thread and decodes and inserts them on Db.WRITER_THREADS
+     * writers.
+     */
+    private static void _insert(FileChannel channel, Section section, final Storage storage)
+            throws Exception {
+        final String collectionName = section.name;
+        ExecutorService writers = Executors.newFixedThreadPool(Db.WRITER_THREADS);
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        try {
+            long position = 0;
+            while (position < section.length) {
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY,
+                        section.offset + position, Math.min(_WINDOW, section.length - position));
+                window.order(ByteOrder.LITTLE_ENDIAN);
+
+                int batchStart = 0;
+                int documents = 0;
+                int next = 0;
+                while (next + 4 <= window.limit() && next + window.getInt(next) <= window.limit()) {
+                    int length = window.getInt(next);
+                    if (length < 5) {
+                        throw new IOException("Bad document length " + length
+                                + " in section " + collectionName);
+                    }
+                    next += length;
+                    if (++documents == Db.BATCH_SIZE) {
+                        results.add(writers.submit(_insertTask(window, batchStart, next,
+                                                               storage, collectionName)));
+                        batchStart = next;
+                        documents = 0;
+                    }
+                }
+                if (documents > 0) {
+                    results.add(writers.submit(_insertTask(window, batchStart, next,
+                                                           storage, collectionName)));
+                }
+                if (next == 0) {
+                    throw new IOException("Truncated document in section " + collectionName);
+                }
+                // Map again from the first document that did not fit.
+                position += next;
+            }
+
+            long inserted = 0;
+            for (Future<Integer> result : results) {
+                inserted += result.get();
+            }
+            if (inserted != section.documents) {
+                throw new IOException("Restored " + inserted + " of " + section.documents
+                        + " " + collectionName);
+            }
+            System.out.println("Restored " + inserted + " " + collectionName);
+        } finally {
+            writers.shutdownNow();
+        }
+    }
+
+    private static Callable<Integer> _insertTask(MappedByteBuffer window, int from, int to,
+                                                 final Storage storage, final String collectionName) {
+        final ByteBuffer documents = window.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        documents.position(from);
+        documents.limit(to);
+        return new Callable<Integer>() {
+            public Integer call() throws Exception {
+                DefaultDBDecoder decoder = new DefaultDBDecoder();
+                List<DBObject> batch = new ArrayList<DBObject>(Db.BATCH_SIZE);
+                while (documents.hasRemaining()) {
+                    byte[] document = new byte[documents.getInt(documents.position())];
+                    documents.get(document);
+                    batch.add(decoder.decode(document, (DBCollection) null));
+                }
+                return storage.insertBatch(batch, collectionName);
+            }
+        };
+    }
+
+    private static ByteBuffer _read(FileChannel channel, long position, int length)
+            throws IOException {
+        ByteBuffer buffer = _buffer(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of snapshot");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static ByteBuffer _buffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static class Section {
+        final String name;
+        long documents = 0;
+        long offset;
+        long length;
+        long crc;
+
+        Section(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * Tracks the file offset of what has been written.
+     */
+    private static class CountingOutputStream extends OutputStream {
+
+        private final OutputStream _out;
+        long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            _out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            _out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            _out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            _out.close();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/**
+ * The operations problem1 and the reports need from wherever the campaigns
+ * and creatives are kept: loading them, computing the campaign totals and
+ * reading those back. MongoStorage keeps them in mongoDB through Db;
+ * MemoryStorage computes the totals in-process without a database.
+ *
+ * The rows returned by the totals methods have the fields of
+ * Db.getTotalClicksAndViewsFromCampaigns(): _id, cpm, cpmMicros, name,
+ * startDate, totalClicks, totalViews, revenueNanos and revenue.
+ *
+ * Filename: Storage.java
+ * @author: David Wang
+ *
+ */
+
+import com.mongodb.Cursor;
+import com.mongodb.DBObject;
+
+import java.util.List;
+
+public interface Storage {
+
+    /**
+     * @return boolean true if the data outlives the process, so a later run
+     * can find what an earlier one loaded.
+     */
+    boolean isPersistent();
+
+    /**
+     * Removes every campaign, creative and total.
+     *
+     * @exception Exception Exception is thrown if the storage cannot be
+     * reached.
+     * @return None
+     */
+    void clear() throws Exception;
+
+    /**
+     * Stores one batch of documents on the calling thread. Must be safe to
+     * call from several threads at once.
+     *
+     * @param batch The documents, as built by Db.toDBObject().
+     * @param collectionName Db.CAMPAIGNS_COLLECTION or Db.CREATIVES_COLLECTION.
+     * @exception Exception Exception is thrown if the storage cannot be
+     * reached.
+     * @return int The number of documents stored.
+     */
+    int insertBatch(List<DBObject> batch, String collectionName) throws Exception;
+
+    /**
+     * Stores any number of documents, splitting them into batches as the
+     * storage sees fit.
+     *
+     * @param objects The documents, as built by Db.toDBObject().
+     * @param collectionName Db.CAMPAIGNS_COLLECTION or Db.CREATIVES_COLLECTION.
+     * @exception Exception Exception is thrown if the storage cannot be
+     * reached.
+     * @return long The number of documents stored.
+     */
+    long insertObjects(List<DBObject> objects, String collectionName) throws Exception;
+
+    /**
+     * Prepares the loaded data for the totals queries, e.g. by indexing the
+     * join keys.
+     *
+     * @exception Exception Exception is thrown if the storage cannot be
+     * reached.
+     * @return None
+     */
+    void ensureIndexes() throws Exception;
+
+    /**
+     * Computes the totals of every campaign from the loaded data.
+     *
+     * @exception Exception Exception is thrown if the storage cannot be
+     * reached.
+     * @return Cursor A cursor over the rows.
+     */
+    Cursor getTotalClicksAndViewsFromCampaigns() throws Exception;
+
+    /**
+     * Computes the totals once and keeps them for getCampaignTotals().
+     *
+     * @exception Exception Exception is thrown if the storage cannot be
+     * reached.
+     * @return None
+     */
+    void materializeCampaignTotals() throws Exception;
+
+    /**
+     * Returns the totals kept by materializeCampaignTotals(), in campaign id
+     * order.
+     *
+     * @exception Exception Exception is thrown if the storage cannot be
+     * reached.
+     * @return Cursor A cursor over the rows.
+     */
+    Cursor getCampaignTotals() throws Exception;
+
+    /**
+     * Returns the row kept by materializeCampaignTotals() for one campaign.
+     *
+     * @param campaignId The campaign id.
+     * @exception Exception Exception is thrown if the storage cannot be
+     * reached.
+     * @return DBObject The row, or null if the campaign has no totals.
+     */
+    DBObject getCampaignTotal(Object campaignId) throws Exception;
+
+    /**
+     * Returns the n rows kept by materializeCampaignTotals() with the
+     * highest value of the field, highest first, ties in campaign id order.
+     *
+     * @param field totalClicks, totalViews or revenueNanos.
+     * @param n The number of rows.
+     * @exception Exception Exception is thrown if the storage cannot be
+     * reached.
+     * @return Cursor A cursor over the rows.
+     */
+    Cursor getTopCampaignTotals(String field, int n) throws Exception;
+
+    /**
+     * Returns the totals kept by materializeCampaignTotals() rolled up by
+     * campaign startDate, as described in Db.getRollups().
+     *
+     * @param period Db.DAY, Db.WEEK or Db.MONTH.
+     * @param from The first bucket start as yyyy-MM-dd, or null for no limit.
+     * @param to The bucket start to stop before, or null for no limit.
+     * @exception Exception Exception is thrown if the storage cannot be
+     * reached.
+     * @return Cursor A cursor over the buckets, in start order.
+     */
+    Cursor getRollups(String period, String from, String to) throws Exception;
+
+    /**
+     * Returns every document of the collection as it was stored, e.g. for
+     * Snapshot to dump the loaded data.
+     *
+     * @param collectionName The name of a collection.
+     * @exception Exception Exception is thrown if the storage cannot be
+     * reached, or UnsupportedOperationException if it does not keep the
+     * documents themselves.
+     * @return Cursor A cursor over the documents.
+     */
+    Cursor getDocuments(String collectionName) throws Exception;
+
+    /**
+     * @param collectionName The name of a collection.
+     * @exception Exception Exception is thrown if the storage cannot be
+     * reached.
+     * @return long The number of documents stored in it.
+     */
+    long getCollectionCount(String collectionName) throws Exception;
+
+    /**
+     * Returns a counter that increases after every write to the storage, so
+     * anything cached from an earlier value is out of date.
+     *
+     * @return long The current write generation.
+     */
+    long getWriteGeneration();
+
+    /**
+     * Releases any connection or memory held.
+     *
+     * @return None
+     */
+    void close();
+}
@@ -0,0 +1,160 @@
+/**
+ * A JSONRecordHandler that incrementally syncs a streamed endpoint into a
+ * mongoDB collection instead of reloading it from scratch. Records are
+ * matched to existing documents on a set of key fields and compared by
+ * content hash:
+ *
+ * - new or changed records are upserted in batches,
+ * - unchanged records are skipped,
+ * - documents whose key no longer appears in the stream are removed.
+ *
+ * When finished, the counts are saved as the collection's sync checkpoint
+ * and the keys of the changed documents are available to update anything
+ * derived from the collection.
+ *
+ * Filename: SyncWriter.java
+ * @author: David Wang
+ *
+ */
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.simple.JSONObject;
+
+public class SyncWriter implements JSONRecordHandler {
+
+    private final String _collectionName;
+    private final String[] _keyFields;
+    private final int _batchSize;
+
+    // Hashes of the documents not yet seen in the stream. Whatever is left
+    // once the stream ends has been removed upstream.
+    private final Map<List<Object>, String> _existing;
+    private List<DBObject> _changed;
+
+    // Keys of every document written or removed.
+    private final List<List<Object>> _changedKeys = new ArrayList<List<Object>>();
+
+    private long _received = 0;
+    private long _unchanged = 0;
+    private long _written = 0;
+
+    /**
+     * Loads the content hashes of the collection so records can be compared
+     * as they arrive.
+     *
+     * @param collectionName The name of the mongoDB collection.
+     * @param keyFields The fields that identify a record.
+     * @exception Exception Exception is thrown if error connection to
+     * database.
+     */
+    public SyncWriter(String collectionName, String... keyFields) throws Exception {
+        _collectionName = collectionName;
+        _keyFields = keyFields;
+        _batchSize = Db.BATCH_SIZE;
+        _changed = new ArrayList<DBObject>(_batchSize);
+
+        DBObject checkpoint = Db.getSyncCheckpoint(collectionName);
+        if (checkpoint != null) {
+            System.out.println("Last sync of " + collectionName + ": " + checkpoint.get("syncedAt"));
+        }
+
+        // Upserts look documents up by key, so the key must be indexed.
+        Db.ensureIndex(collectionName, keyFields);
+        _existing = Db.getContentHashes(collectionName, keyFields);
+        System.out.println("Loaded " + _existing.size() + " content hashes from " + collectionName);
+    }
+
+    public void onRecord(JSONObject record) throws Exception {
+        _received++;
+        DBObject obj = Db.toDBObject(record);
+        String hash = Db.getContentHash(obj);
+        String previous = _existing.remove(Db.getKey(obj, _keyFields));
+
+        if (hash.equals(previous)) {
+            _unchanged++;
+            return;
+        }
+
+        obj.put(Db.CONTENT_HASH_FIELD, hash);
+        _changed.add(obj);
+        _changedKeys.add(Db.getKey(obj, _keyFields));
+        if (_changed.size() >= _batchSize) {
+            _flush();
+        }
+    }
+
+    /**
+     * Writes the remaining changes, removes documents that were not in the
+     * stream and saves the sync checkpoint. Must be called once after the
+     * stream has ended successfully; if the stream failed nothing is removed.
+     *
+     * @exception Exception Exception is thrown if error connection to
+     * database.
+     * @return None
+     */
+    public void finish() throws Exception {
+        finish(null);
+    }
+
+    /**
+     * Same as finish(), also recording in the checkpoint the version of the
+     * API response that was synced.
+     *
+     * @param apiVersion The ETag or Last-Modified of the response, or null.
+     * @exception Exception Exception is thrown if error connection to
+     * database.
+     * @return None
+     */
+    public void finish(String apiVersion) throws Exception {
+        _flush();
+        int deleted = Db.deleteByKeys(_existing.keySet(), _collectionName, _keyFields);
+        _changedKeys.addAll(_existing.keySet());
+
+        DBObject checkpoint = new BasicDBObject();
+        checkpoint.put("received", _received);
+        checkpoint.put("written", _written);
+        checkpoint.put("unchanged", _unchanged);
+        checkpoint.put("deleted", deleted);
+        checkpoint.put(Db.API_VERSION_FIELD, apiVersion);
+        Db.saveSyncCheckpoint(_collectionName, checkpoint);
+
+        System.out.println("Synced " + _collectionName + ": " + _received + " received, "
+                + _written + " written, " + _unchanged + " unchanged, " + deleted + " deleted");
+    }
+
+    /**
+     * Returns the distinct values of one key field over every document that
+     * was written or removed, e.g. the parentIds of changed creatives.
+     *
+     * @param keyField One of the key fields passed to the constructor.
+     * @return Set The distinct values.
+     */
+    public Set<Object> getChangedKeyValues(String keyField) {
+        int index = Arrays.asList(_keyFields).indexOf(keyField);
+        if (index < 0) {
+            throw new IllegalArgumentException("Not a key field: " + keyField);
+        }
+        Set<Object> values = new HashSet<Object>();
+        for (List<Object> key : _changedKeys) {
+            values.add(key.get(index));
+        }
+        return values;
+    }
+
+    private void _flush() throws Exception {
+        if (_changed.isEmpty()) {
+            return;
+        }
+        _written += Db.upsertBatch(_changed, _collectionName, _keyFields);
+        _changed = new ArrayList<DBObject>(_batchSize);
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ * A size-bounded LRU cache of query responses in front of a Storage, used by
+ * TotalsServer so that repeated queries are answered from memory instead of
+ * reading the totals again.
+ *
+ * An entry is dropped when it is older than the TTL, when the cache holds
+ * more than maxEntries and it is the least recently used one, or when the
+ * write generation of the storage has moved since it was loaded, i.e. as
+ * soon as ingestion wrote anything through this process. Writes made by
+ * other processes are only seen once the TTL runs out.
+ *
+ * Filename: TotalsCache.java
+ * @author: David Wang
+ *
+ */
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class TotalsCache {
+
+    /**
+     * Computes the value of a key on a cache miss.
+     */
+    public interface Loader {
+        byte[] load() throws Exception;
+    }
+
+    private final Storage _storage;
+    private final int _maxEntries;
+    private final long _ttlNanos;
+
+    // Access ordered, so the eldest entry is the least recently used.
+    private final LinkedHashMap<String, CachedResponse> _entries;
+    private long _generation;
+    private long _hits = 0;
+    private long _misses = 0;
+
+    /**
+     * @param storage The storage whose write generation invalidates the
+     * entries.
+     * @param maxEntries The maximum number of entries kept.
+     * @param ttlMillis How long an entry is kept; 0 or less to keep it
+     * until it is evicted or invalidated.
+     */
+    public TotalsCache(Storage storage, final int maxEntries, long ttlMillis) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+        }
+        _storage = storage;
+        _maxEntries = maxEntries;
+        _ttlNanos = ttlMillis > 0 ? ttlMillis * 1000000L : Long.MAX_VALUE;
+        _generation = storage.getWriteGeneration();
+        _entries = new LinkedHashMap<String, CachedResponse>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedResponse> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached value of the key, loading it if it is missing,
+     * expired or was loaded before the last write to the storage. The
+     * loader runs without holding the cache lock, so a slow load does not
+     * block hits on other keys.
+     *
+     * @param key The key.
+     * @param loader Computes the value on a miss.
+     * @exception Exception Thrown if passed up from the loader.
+     * @return byte[] The value.
+     */
+    public byte[] get(String key, Loader loader) throws Exception {
+        long generation = _storage.getWriteGeneration();
+        synchronized (this) {
+            if (generation != _generation) {
+                _entries.clear();
+                _generation = generation;
+            }
+            CachedResponse entry = _entries.get(key);
+            if (entry != null && System.nanoTime() - entry.loaded < _ttlNanos) {
+                _hits++;
+                Metrics.count("query.cache.hit", 1);
+                return entry.value;
+            }
+            _misses++;
+            Metrics.count("query.cache.miss", 1);
+        }
+
+        byte[] value = loader.load();
+        synchronized (this) {
+            // Do not keep a value read before a write that has happened since.
+            if (generation == _generation && generation == _storage.getWriteGeneration()) {
+                _entries.put(key, new CachedResponse(value, System.nanoTime()));
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Removes every entry.
+     *
+     * @return None
+     */
+    public synchronized void clear() {
+        _entries.clear();
+    }
+
+    public synchronized int size() {
+        return _entries.size();
+    }
+
+    public int getMaxEntries() {
+        return _maxEntries;
+    }
+
+    public synchronized long getHits() {
+        return _hits;
+    }
+
+    public synchronized long getMisses() {
+        return _misses;
+    }
+
+    private static class CachedResponse {
+        final byte[] value;
+        final long loaded;
+
+        CachedResponse(byte[] value, long loaded) {
+            this.value = value;
+            this.loaded = loaded;
+        }
+    }
+}
@@ -0,0 +1,275 @@
+/**
+ * An embedded HTTP query service for the campaign totals kept by a Storage,
+ * so consumers can read them without running Problem and parsing a CSV:
+ *
+ *   GET /totals/<campaignId>        the totals row of one campaign: name,
+ *                                   cpm, startDate, totalClicks, totalViews,
+ *                                   revenueNanos and revenue
+ *   GET /top?by=<field>&n=<count>   the n campaigns with the most clicks,
+ *                                   views or revenue, highest first
+ *   GET /stats                      hits, misses and size of the cache
+ *
+ * Responses are JSON. They are served from a TotalsCache, so a dashboard
+ * polling the same queries reads memory and the storage is only read again
+ * once ingestion has written something or the entries expire.
+ *
+ * Started with "./run serve", which loads the data like problem1 first.
+ * Options (system properties):
+ *   query.port             port to listen on (8081, 0 picks a free one)
+ *   query.cacheEntries     maximum number of cached responses (10000)
+ *   query.cacheTtlMs       how long a response is cached, 0 for no limit
+ *                          (60000)
+ *   query.maxTop           largest n accepted by /top (1000)
+ *
+ * Filename: TotalsServer.java
+ * @author: David Wang
+ *
+ */
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import com.mongodb.Cursor;
+import com.mongodb.DBObject;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONAware;
+import org.json.simple.JSONObject;
+
+public class TotalsServer {
+
+    // Accepted values of /top?by= and the totals field each one sorts on.
+    private static final Map<String, String> _TOP_FIELDS = new HashMap<String, String>();
+    static {
+        _TOP_FIELDS.put("clicks", "totalClicks");
+        _TOP_FIELDS.put("views", "totalViews");
+        _TOP_FIELDS.put("revenue", "revenueNanos");
+    }
+
+    private static final int _DEFAULT_TOP = 10;
+
+    private final HttpServer _server;
+    private final ExecutorService _executor;
+    private final Storage _storage;
+    private final TotalsCache _cache;
+    private final int _maxTop;
+
+    /**
+     * @param port The port to listen on; 0 picks a free port.
+     * @param storage The storage to read the totals from.
+     * @param cache The cache of responses; must be built over the same
+     * storage.
+     * @param maxTop The largest n accepted by /top.
+     * @exception IOException An exception is thrown if the port cannot be
+     * bound.
+     */
+    public TotalsServer(int port, Storage storage, TotalsCache cache, int maxTop) throws IOException {
+        _storage = storage;
+        _cache = cache;
+        _maxTop = maxTop;
+
+        _server = HttpServer.create(new InetSocketAddress(port), 0);
+        _executor = Executors.newCachedThreadPool();
+        _server.setExecutor(_executor);
+        _server.createContext("/totals/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                _respond(exchange, "/totals/");
+            }
+        });
+        _server.createContext("/top", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                _respond(exchange, "/top");
+            }
+        });
+        _server.createContext("/stats", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                _respond(exchange, "/stats");
+            }
+        });
+    }
+
+    public void start() {
+        _server.start();
+        System.out.println("Serving campaign totals at " + getBaseUrl());
+    }
+
+    public void stop() {
+        _server.stop(0);
+        _executor.shutdownNow();
+    }
+
+    /**
+     * @return String The url the queries are served at.
+     */
+    public String getBaseUrl() {
+        return "http://localhost:" + _server.getAddress().getPort();
+    }
+
+    private void _respond(HttpExchange exchange, String context) throws IOException {
+        long start = Metrics.start();
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            // Contexts match by prefix; only /totals/ takes anything after it.
+            String path = exchange.getRequestURI().getPath();
+            if (!"/totals/".equals(context) && !context.equals(path)) {
+                _send(exchange, 404, _error("Not found: " + path));
+                return;
+            }
+            byte[] body;
+            if ("/totals/".equals(context)) {
+                body = _total(path.substring(context.length()));
+            } else if ("/top".equals(context)) {
+                body = _top(_query(exchange.getRequestURI().getRawQuery()));
+            } else {
+                body = _stats();
+            }
+            if (body == null) {
+                _send(exchange, 404, _error("No totals for this campaign"));
+            } else {
+                _send(exchange, 200, body);
+            }
+        } catch (IllegalArgumentException e) {
+            _send(exchange, 400, _error(e.getMessage()));
+        } catch (Exception e) {
+            System.err.println("Query failed: " + e);
+            _send(exchange, 500, _error("Query failed"));
+        } finally {
+            exchange.close();
+            Metrics.stop("query" + context, start);
+        }
+    }
+
+    /**
+     * Returns the row of the campaign, or null if it has none.
+     */
+    private byte[] _total(String id) throws Exception {
+        final long campaignId;
+        try {
+            campaignId = Long.parseLong(id);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a campaign id: " + id);
+        }
+        byte[] body = _cache.get("totals/" + campaignId, new TotalsCache.Loader() {
+            public byte[] load() throws Exception {
+                DBObject row = _storage.getCampaignTotal(campaignId);
+                return row == null ? new byte[0] : _json(_toJSON(row));
+            }
+        });
+        // A missing campaign is cached as an empty body so repeated
+        // lookups of it are not sent to the storage either.
+        return body.length == 0 ? null : body;
+    }
+
+    private byte[] _top(Map<String, String> query) throws Exception {
+        String by = query.containsKey("by") ? query.get("by") : "clicks";
+        final String field = _TOP_FIELDS.get(by);
+        if (field == null) {
+            throw new IllegalArgumentException("by must be clicks, views or revenue: " + by);
+        }
+        final int n;
+        try {
+            n = query.containsKey("n") ? Integer.parseInt(query.get("n")) : _DEFAULT_TOP;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a number: " + query.get("n"));
+        }
+        if (n < 1 || n > _maxTop) {
+            throw new IllegalArgumentException("n must be between 1 and " + _maxTop + ": " + n);
+        }
+        return _cache.get("top/" + field + "/" + n, new TotalsCache.Loader() {
+            @SuppressWarnings("unchecked")
+            public byte[] load() throws Exception {
+                JSONArray rows = new JSONArray();
+                Cursor cursor = _storage.getTopCampaignTotals(field, n);
+                try {
+                    while (cursor.hasNext()) {
+                        rows.add(_toJSON(cursor.next()));
+                    }
+                } finally {
+                    cursor.close();
+                }
+                return _json(rows);
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private byte[] _stats() {
+        JSONObject stats = new JSONObject();
+        stats.put("hits", _cache.getHits());
+        stats.put("misses", _cache.getMisses());
+        stats.put("size", _cache.size());
+        stats.put("maxEntries", _cache.getMaxEntries());
+        stats.put("writeGeneration", _storage.getWriteGeneration());
+        return _json(stats);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static JSONObject _toJSON(DBObject row) {
+        JSONObject object = new JSONObject();
+        for (String key : row.keySet()) {
+            object.put(key, row.get(key));
+        }
+        return object;
+    }
+
+    private static byte[] _json(JSONAware value) {
+        return value.toJSONString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static byte[] _error(String message) {
+        JSONObject error = new JSONObject();
+        error.put("error", message);
+        return _json(error);
+    }
+
+    private static Map<String, String> _query(String rawQuery) throws IOException {
+        Map<String, String> query = new HashMap<String, String>();
+        if (rawQuery == null) {
+            return query;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                query.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+                          URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+            }
+        }
+        return query;
+    }
+
+    private static void _send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    /**
+     * Builds a server over the storage from the query.* options.
+     *
+     * @param storage The storage to read the totals from.
+     * @exception IOException An exception is thrown if the port cannot be
+     * bound.
+     * @return TotalsServer The server, not yet started.
+     */
+    public static TotalsServer fromProperties(Storage storage) throws IOException {
+        TotalsCache cache = new TotalsCache(storage,
+                                            Integer.getInteger("query.cacheEntries", 10000),
+                                            Long.getLong("query.cacheTtlMs", 60000L));
+        return new TotalsServer(Integer.getInteger("query.port", 8081), storage, cache,
+                                Integer.getInteger("query.maxTop", 1000));
+    }
+}
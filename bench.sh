@@ -0,0 +1,4 @@
+#!/bin/bash
+
+javac -Xlint:deprecation -cp .:lib/*:bench bench/Benchmarks.java && \
+java -cp .:lib/*:bench $BENCH_OPTS Benchmarks "$@"
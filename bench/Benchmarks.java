@@ -0,0 +1,213 @@
+/**
+ * Micro benchmarks for the ingest and export hot paths, run on data from
+ * DataGenerator so results can be compared run to run:
+ *
+ * - parse.*    Client._parseJSONArray (buffered) vs Client.streamJSONArray
+ * - convert.*  Db._JSONArrayToDBObject vs the old toString/JSON.parse
+ * - csv.*      the CSV exporters vs the old CSVPrinter loop
+ * - revenue.*  Db.parseMicroDollars vs the old substring/parseFloat
+ * - columnar   ColumnarSink
+ *
+ * Each benchmark runs bench.warmup untimed iterations followed by
+ * bench.iterations timed ones and reports the mean and best time per
+ * iteration plus records per second. Results are folded into a checksum so
+ * the JIT cannot drop the work.
+ *
+ * Usage: ./bench.sh [name prefix...]
+ *   -Dbench.campaigns=10000 -Dbench.fanOut=20 -Dbench.warmup=5 -Dbench.iterations=10
+ *
+ * Filename: Benchmarks.java
+ * @author: David Wang
+ *
+ */
+
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+public class Benchmarks {
+
+    private static final int _CAMPAIGNS = Integer.getInteger("bench.campaigns", 10000);
+    private static final int _FAN_OUT = Integer.getInteger("bench.fanOut", 20);
+    private static final int _WARMUP = Integer.getInteger("bench.warmup", 5);
+    private static final int _ITERATIONS = Integer.getInteger("bench.iterations", 10);
+
+    private static final PrintStream _STDOUT = System.out;
+    private static long _checksum = 0;
+
+    /**
+     * One timed operation. Returns a value that depends on the work done.
+     */
+    private interface Operation {
+        long run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        // Silence the progress output of the code under test.
+        System.setOut(new PrintStream(new OutputStream() {
+            public void write(int b) {
+            }
+        }));
+
+        final DataGenerator generator = new DataGenerator(_CAMPAIGNS, _FAN_OUT);
+        final byte[] creativesJSON = generator.creativesJSON();
+        final JSONArray creatives = Client._parseJSONArray(new ByteArrayInputStream(creativesJSON));
+        final List<DBObject> totals = generator.campaignTotals();
+        final long creativeCount = generator.getCreativeCount();
+        final File dir = Files.createTempDirectory("benchmarks").toFile();
+
+        _STDOUT.println("campaigns=" + _CAMPAIGNS + " fanOut=" + _FAN_OUT
+                + " creatives=" + creativeCount + " creativesJSON=" + creativesJSON.length + " bytes");
+        _STDOUT.println(String.format("%-24s %12s %12s %14s", "benchmark", "mean ms", "best ms", "records/s"));
+
+        try {
+            _run(args, "parse.buffered", creativeCount, new Operation() {
+                public long run() throws Exception {
+                    return Client._parseJSONArray(new ByteArrayInputStream(creativesJSON)).size();
+                }
+            });
+            _run(args, "parse.streaming", creativeCount, new Operation() {
+                public long run() throws Exception {
+                    return Client.streamJSONArray(new ByteArrayInputStream(creativesJSON),
+                            new JSONRecordHandler() {
+                                public void onRecord(JSONObject record) {
+                                }
+                            });
+                }
+            });
+            _run(args, "convert.direct", creativeCount, new Operation() {
+                public long run() {
+                    return Db._JSONArrayToDBObject(creatives).size();
+                }
+            });
+            _run(args, "convert.reparse", creativeCount, new Operation() {
+                public long run() {
+                    long size = 0;
+                    for (Object record : creatives) {
+                        size += ((DBObject) JSON.parse(record.toString())).keySet().size();
+                    }
+                    return size;
+                }
+            });
+            _run(args, "csv.clicksAndViews", _CAMPAIGNS, new Operation() {
+                public long run() throws Exception {
+                    String file = new File(dir, "clicks.csv").getPath();
+                    return Client.outputCampaigns(new ListCursor(totals), new CSVSink(file, false));
+                }
+            });
+            _run(args, "csv.revenue", _CAMPAIGNS, new Operation() {
+                public long run() throws Exception {
+                    String file = new File(dir, "revenue.csv").getPath();
+                    return Client.outputCampaigns(new ListCursor(totals), new CSVSink(file, true));
+                }
+            });
+            _run(args, "csv.legacyRevenue", _CAMPAIGNS, new Operation() {
+                public long run() throws Exception {
+                    return _legacyRevenueCSV(totals, new File(dir, "legacy.csv").getPath());
+                }
+            });
+            _run(args, "revenue.fixedPoint", _CAMPAIGNS, new Operation() {
+                public long run() {
+                    long sum = 0;
+                    for (DBObject row : totals) {
+                        long views = ((Number) row.get("totalViews")).longValue();
+                        sum += Db.parseMicroDollars((String) row.get("cpm")) * views / 1000;
+                    }
+                    return sum;
+                }
+            });
+            _run(args, "revenue.float", _CAMPAIGNS, new Operation() {
+                public long run() {
+                    float sum = 0;
+                    for (DBObject row : totals) {
+                        String cpm = (String) row.get("cpm");
+                        float cpmFloat = Float.parseFloat(cpm.substring(1, cpm.length()));
+                        sum += cpmFloat * ((Number) row.get("totalViews")).longValue() / 1000;
+                    }
+                    return (long) sum;
+                }
+            });
+            _run(args, "columnar", _CAMPAIGNS, new Operation() {
+                public long run() throws Exception {
+                    String file = new File(dir, "totals.col").getPath();
+                    return Client.outputCampaigns(new ListCursor(totals), new ColumnarSink(file));
+                }
+            });
+        } finally {
+            System.setOut(_STDOUT);
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+        _STDOUT.println("checksum " + _checksum);
+    }
+
+    /**
+     * The revenue CSV loop as it was before CSVSink, for comparison.
+     */
+    private static long _legacyRevenueCSV(List<DBObject> rows, String filename) throws Exception {
+        CSVPrinter csvPrinter = new CSVPrinter(
+                Files.newBufferedWriter(Paths.get(filename), StandardCharsets.UTF_8),
+                CSVFormat.DEFAULT.withHeader("id", "cpm", "name", "startDate",
+                                             "totalClicks", "totalViews", "revenue"));
+        for (DBObject obj : rows) {
+            String cpmString = obj.get("cpm").toString();
+            float cpmFloat = Float.parseFloat(cpmString.substring(1, cpmString.length()));
+            Object revenue = cpmFloat * ((Number) obj.get("totalViews")).longValue() / 1000;
+            csvPrinter.printRecord(obj.get("_id"), obj.get("cpm"), obj.get("name"),
+                    obj.get("startDate"), obj.get("totalClicks"), obj.get("totalViews"), revenue);
+        }
+        csvPrinter.close();
+        return rows.size();
+    }
+
+    private static void _run(String[] filters, String name, long records,
+                             Operation operation) throws Exception {
+        if (!_selected(filters, name)) {
+            return;
+        }
+        for (int i = 0; i < _WARMUP; i++) {
+            _checksum += operation.run();
+        }
+
+        long total = 0;
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < _ITERATIONS; i++) {
+            long start = System.nanoTime();
+            _checksum += operation.run();
+            long elapsed = System.nanoTime() - start;
+            total += elapsed;
+            best = Math.min(best, elapsed);
+        }
+
+        double meanMs = total / 1e6 / _ITERATIONS;
+        _STDOUT.println(String.format("%-24s %12.3f %12.3f %14.0f",
+                name, meanMs, best / 1e6, records / (meanMs / 1000)));
+    }
+
+    private static boolean _selected(String[] filters, String name) {
+        if (filters.length == 0) {
+            return true;
+        }
+        for (String filter : filters) {
+            if (name.startsWith(filter)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -1,3 +1,3 @@
 #!/bin/bash
 
-javac -Xlint:deprecation -cp .:lib/* Problem.java
+javac -Xlint:deprecation -cp .:lib/* *.java
@@ -1,3 +1,3 @@
 #!/bin/bash
 
-java -cp .:lib/* Problem
+java -cp .:lib/* Problem "$@"